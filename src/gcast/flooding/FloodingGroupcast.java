@@ -0,0 +1,185 @@
+package gcast.flooding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import dat.Algorithm;
+import dat.DatException;
+import dat.Event;
+import dat.Message;
+import dat.Node;
+import dat.algorithms.gcast.GroupcastHandler;
+import dat.algorithms.gcast.GroupcastProtocol;
+import dat.algorithms.membership.MembershipAlgorithm;
+import dat.network.NodeAddress;
+
+/**
+ * Delivers a message to a group of nodes by flooding: the sender sends the message
+ * to all the known nodes and each node, on the first reception, forwards it to all the
+ * known nodes except the one it was received from. A node delivers the message to the
+ * handler registered for its group only if it is one of the targets, or if no targets
+ * were given. Messages are not delivered to the sender.
+ *
+ * Nodes remember the ids of the last "history" messages seen, to discard duplicates.
+ *
+ * Equivalent to dat.algorithms.gcast.FloodingGroupcastAlgorithm, which never
+ * obtains its membership algorithm.
+ *
+ */
+public class FloodingGroupcast implements GroupcastProtocol, Algorithm {
+
+    protected static int DEFAULT_HISTORY = 10000;
+
+    /**
+     * The node on which this instance of the algorithm runs
+     */
+    protected Node node;
+    /**
+     *  Group Membership algorithms
+     */
+    protected MembershipAlgorithm membership;
+    /**
+     * Handler of each group
+     */
+    protected Map<String, GroupcastHandler> handlers = new HashMap<String, GroupcastHandler>();
+    /**
+     * Ids of the last messages seen, in order of reception
+     */
+    protected Set<String> messages = new LinkedHashSet<String>();
+    /**
+     * Maximum number of message ids remembered
+     */
+    protected int history;
+
+    @Override
+    public void registerHandler(String group, GroupcastHandler handler) {
+        synchronized (handlers) {
+            handlers.put(group, handler);
+        }
+    }
+
+    /**
+     * Sends a message to a group of nodes.
+     *
+     * @param group
+     * @param message
+     * @param targets nodes which must deliver the message. If empty or null, all nodes deliver it
+     */
+    @Override
+    public void cast(String group, Message message, List<NodeAddress> targets) {
+        message.setString("group", group);
+        if (targets == null) {
+            targets = Collections.emptyList();
+        }
+        message.setObject("targets", targets.toArray(new NodeAddress[targets.size()]));
+        seen(message.getId());
+
+        forward(message, null);
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        //there are no events defined in this algorithm, so ignore any
+        node.getLog().warn("Invalid Event Triggered " + event.toString());
+    }
+
+    /**
+     * Handles a message cast by another node. Messages already seen are discarded.
+     */
+    @Override
+    public void handleMessage(Message message) {
+        if (!seen(message.getId())) {
+            return;
+        }
+
+        NodeAddress sender = message.getSender();
+        forward(message, sender);
+
+        NodeAddress[] targets = (NodeAddress[]) message.getObject("targets");
+        if (!isTarget(targets)) {
+            return;
+        }
+
+        String group = message.getString("group");
+        GroupcastHandler handler;
+        synchronized (handlers) {
+            handler = handlers.get(group);
+        }
+        if (handler == null) {
+            node.getLog().debug("No handler for group " + group);
+            return;
+        }
+        handler.handleCast(group, message);
+    }
+
+    /**
+     * Initializes the execution of the algorithm in this node.
+     *
+     * @param node the Node on which this instance of the algoritms is executed.
+     *
+     */
+    @Override
+    public void init(Node node) {
+        this.node = node;
+        this.membership = (MembershipAlgorithm) node.getAlgorithm(node.getParameters().getString("membership"),
+                MembershipAlgorithm.class);
+        this.history = node.getParameters().getInt("history", DEFAULT_HISTORY);
+    }
+
+    /**
+     * Sends a message to all the known nodes, except this node and the one
+     * it was received from
+     */
+    protected void forward(Message message, NodeAddress sender) {
+        List<NodeAddress> neighbors = new ArrayList<NodeAddress>();
+        for (NodeAddress n : membership.getKnownNodes()) {
+            if (!n.equals(node.getAddress()) && !n.equals(sender)) {
+                neighbors.add(n);
+            }
+        }
+
+        if (neighbors.isEmpty()) {
+            return;
+        }
+
+        try {
+            node.sendMessage(neighbors, message);
+        } catch (DatException e) {
+            node.getLog().debug("Exception disseminating message " + message.toString(), e);
+        }
+    }
+
+    /**
+     * Registers a message as seen
+     *
+     * @return true if the message had not been seen before
+     */
+    protected boolean seen(String id) {
+        synchronized (messages) {
+            if (!messages.add(id)) {
+                return false;
+            }
+            if (messages.size() > history) {
+                messages.remove(messages.iterator().next());
+            }
+            return true;
+        }
+    }
+
+    protected boolean isTarget(NodeAddress[] targets) {
+        if (targets == null || targets.length == 0) {
+            return true;
+        }
+        for (NodeAddress target : targets) {
+            if (target.equals(node.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
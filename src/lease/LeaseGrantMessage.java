@@ -0,0 +1,11 @@
+package lease;
+
+/**
+ * Grants a read lease for the object given by the attribute "key". The attribute
+ * "version" is the version of the object and "duration" the duration of the lease,
+ * in milliseconds
+ *
+ */
+public class LeaseGrantMessage extends dat.Message {
+
+}
@@ -0,0 +1,661 @@
+package lease;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import dat.Algorithm;
+import dat.DatException;
+import dat.Event;
+import dat.Message;
+import dat.Node;
+import dat.algorithms.leader.LeaderElection;
+import dat.network.NodeAddress;
+
+/**
+ * Grants read leases of objects from the leader elected by the algorithm given by
+ * the "leader" parameter.
+ *
+ * The leader keeps a version of each object, given by each modification, and
+ * the nodes holding a lease of each object. Versions are unique among the objects,
+ * so once the leases of an object have expired its version can be forgotten: the
+ * objects without version take the highest version forgotten, which is never lower
+ * than one already given to them. Leases last "duration" milliseconds.
+ * A node considers its lease valid from the time it requested it, so it expires
+ * before the leader considers it expired.
+ *
+ * Requests of permission to modify an object are served one at a time. The leader
+ * sends a LeaseRevokeMessage to the holders of leases of the object and grants the
+ * permission when all of them have acknowledged it or their leases have expired.
+ * While the object is being modified, lease requests are queued. The writer has
+ * "duration" milliseconds to end the modification, after which the permission
+ * is considered released. The writer considers the permission granted from the
+ * time it requested it plus the time the leader waited to grant it, so it expires
+ * before the leader considers it released, and reports modifications which end
+ * later.
+ *
+ * As a new leader doesn't know the leases granted by the previous one, it doesn't
+ * grant permissions to modify objects until "duration" milliseconds after it starts
+ * acting as leader.
+ *
+ * Requests not answered in "timeout" milliseconds fail. Nodes remember the version
+ * of the last "history" objects leased.
+ *
+ */
+public class LeaseManager implements LeaseProtocol, Algorithm {
+
+    protected static long DEFAULT_DURATION = 5000;
+
+    protected static long DEFAULT_TIMEOUT = 2000;
+
+    protected static int DEFAULT_HISTORY = 100000;
+
+    /**
+     * Lease held by this node
+     */
+    protected static class Lease {
+
+        protected long expiration;
+
+        protected long version;
+
+        protected Lease(long expiration, long version) {
+            this.expiration = expiration;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Thread waiting for an answer of the leader
+     */
+    protected static class Waiter {
+
+        protected CountDownLatch answer = new CountDownLatch(1);
+
+        protected long sent = System.currentTimeMillis();
+
+        protected Status status = Status.UNAVAILABLE;
+
+        protected boolean await(long timeout) {
+            try {
+                return answer.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Modification of an object, in the leader
+     */
+    protected static class Write {
+
+        protected NodeAddress writer;
+
+        /**
+         * Time the leader received the request
+         */
+        protected long requested = System.currentTimeMillis();
+
+        /**
+         * Holders of leases which have not acknowledged the revocation
+         */
+        protected Set<NodeAddress> revoking = new HashSet<NodeAddress>();
+
+        protected boolean granted;
+
+        /**
+         * Nodes waiting for a lease or to modify the object
+         */
+        protected List<NodeAddress> readers = new ArrayList<NodeAddress>();
+
+        protected LinkedList<Write> writers = new LinkedList<Write>();
+
+        protected Write(NodeAddress writer) {
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * The node on which this instance of the algorithm runs
+     */
+    protected Node node;
+
+    protected LeaderElection election;
+
+    protected Listener listener;
+
+    protected long duration;
+
+    protected long timeout;
+
+    /**
+     * Leases held by this node, including expired ones, to remember their versions
+     */
+    protected LinkedHashMap<String, Lease> leases;
+
+    protected Map<String, Waiter> leaseWaiters = new HashMap<String, Waiter>();
+
+    protected Map<String, Waiter> writeWaiters = new HashMap<String, Waiter>();
+
+    /**
+     * Expiration time of the permissions to modify objects held by this node
+     */
+    protected Map<String, Long> permissions = new HashMap<String, Long>();
+
+    /**
+     * Initial version of the objects in the leader. Versions of different leaders don't overlap
+     */
+    protected long epoch;
+
+    /**
+     * Time at which this node started acting as leader. 0 if it has not acted as leader
+     */
+    protected long leaderSince;
+
+    protected Map<String, Long> versions = new HashMap<String, Long>();
+
+    /**
+     * Last version given by the leader
+     */
+    protected long lastVersion;
+
+    /**
+     * Version of the objects without version: the highest version forgotten
+     */
+    protected long forgottenVersion;
+
+    /**
+     * Time the expired leases were last removed
+     */
+    protected long lastPrune;
+
+    /**
+     * Expiration time of the leases of each object granted by the leader, by holder
+     */
+    protected Map<String, Map<NodeAddress, Long>> holders = new HashMap<String, Map<NodeAddress, Long>>();
+
+    protected Map<String, Write> writes = new HashMap<String, Write>();
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Status acquire(String key) {
+        Waiter waiter;
+        boolean request = false;
+
+        synchronized (this) {
+            Lease lease = leases.get(key);
+            if (lease != null && lease.expiration > System.currentTimeMillis()) {
+                return Status.VALID;
+            }
+
+            waiter = leaseWaiters.get(key);
+            if (waiter == null) {
+                waiter = new Waiter();
+                leaseWaiters.put(key, waiter);
+                request = true;
+            }
+        }
+
+        if (request) {
+            LeaseRequestMessage message = new LeaseRequestMessage();
+            message.setString("key", key);
+            if (!send(election.getLeader(), message)) {
+                answer(leaseWaiters, key, Status.UNAVAILABLE);
+            }
+        }
+
+        if (!waiter.await(timeout)) {
+            synchronized (this) {
+                leaseWaiters.remove(key);
+            }
+            return Status.UNAVAILABLE;
+        }
+        return waiter.status;
+    }
+
+    @Override
+    public boolean beginWrite(String key) {
+        Waiter waiter = new Waiter();
+        synchronized (this) {
+            writeWaiters.put(key, waiter);
+        }
+
+        WriteRequestMessage message = new WriteRequestMessage();
+        message.setString("key", key);
+        if (!send(election.getLeader(), message)) {
+            answer(writeWaiters, key, Status.UNAVAILABLE);
+        }
+
+        //the leader may wait for the leases to expire and for other writers
+        if (!waiter.await(2 * duration + timeout)) {
+            synchronized (this) {
+                writeWaiters.remove(key);
+            }
+            //cancel the request
+            endWrite(key);
+            return false;
+        }
+        if (waiter.status == Status.UNAVAILABLE) {
+            //release a permission which expired before it was received
+            endWrite(key);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endWrite(String key) {
+        Long expiration;
+        synchronized (this) {
+            expiration = permissions.remove(key);
+        }
+
+        WriteDoneMessage message = new WriteDoneMessage();
+        message.setString("key", key);
+        send(election.getLeader(), message);
+        return expiration != null && expiration > System.currentTimeMillis();
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        //there are no events defined in this algorithm, so ignore any
+        node.getLog().warn("Invalid Event Triggered " + event.toString());
+    }
+
+    /**
+     * The wait for the revocation of the leases, or for the end of the modification, has ended
+     */
+    public synchronized void handleEvent(LeaseTimeoutEvent event) {
+        String key = event.getType();
+        Write write = writes.get(key);
+        if (write == null) {
+            return;
+        }
+        if (!write.granted) {
+            grantWrite(key, write);
+        } else {
+            endWrite(key, write);
+        }
+    }
+
+    @Override
+    /**
+     * Handles a generic message. If this method is called, then there is an error
+     * in the algorirthm. More likely, a wrong message class is being used.
+     */
+    public void handleMessage(Message message) {
+        node.getLog().debug("Invalid Message Received " + message.toString());
+    }
+
+    /**
+     * Grants a lease, unless the object is being modified
+     */
+    public synchronized void handleMessage(LeaseRequestMessage request) {
+        lead();
+
+        String key = request.getString("key");
+        Write write = writes.get(key);
+        if (write != null) {
+            write.readers.add(request.getSender());
+        } else {
+            grantLease(key, request.getSender());
+        }
+    }
+
+    public void handleMessage(LeaseGrantMessage grant) {
+        String key = grant.getString("key");
+        long version = grant.getLong("version");
+        long leaseDuration = grant.getLong("duration");
+
+        synchronized (this) {
+            Waiter waiter = leaseWaiters.get(key);
+            if (waiter == null) {
+                return;
+            }
+
+            Lease previous = leases.get(key);
+            Status status = (previous != null && previous.version == version) ? Status.VALID : Status.CHANGED;
+            leases.put(key, new Lease(waiter.sent + leaseDuration, version));
+            answer(leaseWaiters, key, status);
+        }
+    }
+
+    /**
+     * Discards the lease and acknowledges the revocation
+     */
+    public void handleMessage(LeaseRevokeMessage revoke) {
+        String key = revoke.getString("key");
+
+        synchronized (this) {
+            Lease lease = leases.get(key);
+            if (lease != null) {
+                lease.expiration = 0;
+            }
+        }
+        if (listener != null) {
+            listener.revoked(key);
+        }
+
+        LeaseRevokedMessage ack = new LeaseRevokedMessage();
+        ack.setString("key", key);
+        send(revoke.getSender(), ack);
+    }
+
+    public synchronized void handleMessage(LeaseRevokedMessage ack) {
+        String key = ack.getString("key");
+        Write write = writes.get(key);
+        if (write == null || write.granted) {
+            return;
+        }
+
+        write.revoking.remove(ack.getSender());
+        if (write.revoking.isEmpty() && leaderSince + duration <= System.currentTimeMillis()) {
+            node.cancelEvent(eventId(key));
+            grantWrite(key, write);
+        }
+    }
+
+    /**
+     * Starts a modification, or queues it if the object is already being modified
+     */
+    public synchronized void handleMessage(WriteRequestMessage request) {
+        lead();
+
+        String key = request.getString("key");
+        Write write = writes.get(key);
+        if (write != null) {
+            write.writers.add(new Write(request.getSender()));
+        } else {
+            startWrite(key, new Write(request.getSender()));
+        }
+    }
+
+    public void handleMessage(WriteGrantMessage grant) {
+        String key = grant.getString("key");
+        long delay = grant.getLong("delay");
+        long writeDuration = grant.getLong("duration");
+
+        synchronized (this) {
+            Waiter waiter = writeWaiters.get(key);
+            if (waiter == null) {
+                return;
+            }
+
+            long expiration = waiter.sent + delay + writeDuration;
+            if (expiration > System.currentTimeMillis()) {
+                permissions.put(key, expiration);
+                answer(writeWaiters, key, Status.CHANGED);
+            } else {
+                answer(writeWaiters, key, Status.UNAVAILABLE);
+            }
+        }
+    }
+
+    /**
+     * Ends a modification, or cancels it if it is queued
+     */
+    public synchronized void handleMessage(WriteDoneMessage done) {
+        String key = done.getString("key");
+        Write write = writes.get(key);
+        if (write == null) {
+            return;
+        }
+
+        if (write.writer.equals(done.getSender())) {
+            node.cancelEvent(eventId(key));
+            endWrite(key, write);
+        } else {
+            for (Write queued : write.writers) {
+                if (queued.writer.equals(done.getSender())) {
+                    write.writers.remove(queued);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Initializes the execution of the algorithm in this node.
+     *
+     * @param node the Node on which this instance of the algoritms is executed.
+     *
+     */
+    @Override
+    public void init(Node node) {
+        this.node = node;
+        this.election = (LeaderElection) node.getAlgorithm(node.getParameters().getString("leader"),
+                LeaderElection.class);
+        this.duration = node.getParameters().getLong("duration", DEFAULT_DURATION);
+        this.timeout = node.getParameters().getLong("timeout", DEFAULT_TIMEOUT);
+        final int history = node.getParameters().getInt("history", DEFAULT_HISTORY);
+        this.leases = new LinkedHashMap<String, Lease>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Lease> eldest) {
+                return size() > history;
+            }
+        };
+        this.epoch = System.currentTimeMillis() << 16;
+        this.lastVersion = epoch;
+        this.forgottenVersion = epoch;
+    }
+
+    /**
+     * Registers the start of the activity as leader. Must be called synchronized
+     */
+    protected void lead() {
+        if (leaderSince == 0) {
+            leaderSince = System.currentTimeMillis();
+        }
+    }
+
+    protected void grantLease(String key, NodeAddress holder) {
+        prune();
+
+        Map<NodeAddress, Long> keyHolders = holders.get(key);
+        if (keyHolders == null) {
+            keyHolders = new HashMap<NodeAddress, Long>();
+            holders.put(key, keyHolders);
+        }
+        keyHolders.put(holder, System.currentTimeMillis() + duration);
+
+        LeaseGrantMessage grant = new LeaseGrantMessage();
+        grant.setString("key", key);
+        grant.setLong("version", version(key));
+        grant.setLong("duration", duration);
+        send(holder, grant);
+    }
+
+    /**
+     * Revokes the leases of an object, and grants the modification if there are none.
+     * Otherwise waits until they are acknowledged or expire. Must be called synchronized
+     */
+    protected void startWrite(String key, Write write) {
+        writes.put(key, write);
+
+        long now = System.currentTimeMillis();
+        long wait = leaderSince + duration;
+        Map<NodeAddress, Long> keyHolders = holders.remove(key);
+        if (keyHolders != null) {
+            for (Map.Entry<NodeAddress, Long> holder : keyHolders.entrySet()) {
+                if (holder.getValue() > now) {
+                    write.revoking.add(holder.getKey());
+                    wait = Math.max(wait, holder.getValue());
+                }
+            }
+        }
+
+        if (wait <= now) {
+            grantWrite(key, write);
+            return;
+        }
+
+        schedule(key, wait - now);
+        for (NodeAddress holder : new ArrayList<NodeAddress>(write.revoking)) {
+            LeaseRevokeMessage revoke = new LeaseRevokeMessage();
+            revoke.setString("key", key);
+            send(holder, revoke);
+        }
+    }
+
+    /**
+     * Grants the modification to the writer, giving it a new version. Must be called synchronized
+     */
+    protected void grantWrite(String key, Write write) {
+        prune();
+
+        write.granted = true;
+        versions.put(key, ++lastVersion);
+        schedule(key, duration);
+
+        WriteGrantMessage grant = new WriteGrantMessage();
+        grant.setString("key", key);
+        grant.setLong("version", version(key));
+        grant.setLong("delay", System.currentTimeMillis() - write.requested);
+        grant.setLong("duration", duration);
+        send(write.writer, grant);
+    }
+
+    /**
+     * Ends a modification and starts the next one, if any. Otherwise grants the
+     * queued leases. Must be called synchronized
+     */
+    protected void endWrite(String key, Write write) {
+        writes.remove(key);
+
+        if (!write.writers.isEmpty()) {
+            Write next = write.writers.removeFirst();
+            next.writers = write.writers;
+            next.readers = write.readers;
+            startWrite(key, next);
+            return;
+        }
+
+        for (NodeAddress reader : write.readers) {
+            grantLease(key, reader);
+        }
+    }
+
+    protected long version(String key) {
+        Long version = versions.get(key);
+        return (version == null) ? forgottenVersion : version;
+    }
+
+    /**
+     * Removes the expired leases and forgets the versions of the objects without
+     * leases or modifications, at most once every "duration" milliseconds. Must be
+     * called synchronized
+     */
+    protected void prune() {
+        long now = System.currentTimeMillis();
+        if (now - lastPrune < duration) {
+            return;
+        }
+        lastPrune = now;
+
+        Iterator<Map<NodeAddress, Long>> keyHolders = holders.values().iterator();
+        while (keyHolders.hasNext()) {
+            Map<NodeAddress, Long> expirations = keyHolders.next();
+            Iterator<Long> expiration = expirations.values().iterator();
+            while (expiration.hasNext()) {
+                if (expiration.next() <= now) {
+                    expiration.remove();
+                }
+            }
+            if (expirations.isEmpty()) {
+                keyHolders.remove();
+            }
+        }
+
+        Iterator<Map.Entry<String, Long>> entries = versions.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (!holders.containsKey(entry.getKey()) && !writes.containsKey(entry.getKey())) {
+                forgottenVersion = Math.max(forgottenVersion, entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    protected void schedule(String key, long delay) {
+        LeaseTimeoutEvent event = new LeaseTimeoutEvent();
+        event.setTime(delay);
+        event.setId(eventId(key));
+        event.setType(key);
+        node.scheduleEvent(event);
+    }
+
+    protected static String eventId(String key) {
+        return "lease:" + key;
+    }
+
+    /**
+     * Answers a waiting thread
+     */
+    protected void answer(Map<String, Waiter> waiters, String key, Status status) {
+        synchronized (this) {
+            Waiter waiter = waiters.remove(key);
+            if (waiter != null) {
+                waiter.status = status;
+                waiter.answer.countDown();
+            }
+        }
+    }
+
+    /**
+     * Sends a message. Messages to this node are handled directly
+     *
+     * @return true if the message was sent
+     */
+    protected boolean send(NodeAddress destination, Message message) {
+        if (destination.equals(node.getAddress())) {
+            message.setSender(node.getAddress());
+            dispatch(message);
+            return true;
+        }
+
+        try {
+            node.sendMessage(destination, message);
+            return true;
+        } catch (DatException e) {
+            node.getLog().debug("Exception sending message to " + destination, e);
+            return false;
+        }
+    }
+
+    protected void dispatch(Message message) {
+        if (message instanceof LeaseRequestMessage) {
+            handleMessage((LeaseRequestMessage) message);
+        } else if (message instanceof LeaseGrantMessage) {
+            handleMessage((LeaseGrantMessage) message);
+        } else if (message instanceof LeaseRevokeMessage) {
+            handleMessage((LeaseRevokeMessage) message);
+        } else if (message instanceof LeaseRevokedMessage) {
+            handleMessage((LeaseRevokedMessage) message);
+        } else if (message instanceof WriteRequestMessage) {
+            handleMessage((WriteRequestMessage) message);
+        } else if (message instanceof WriteGrantMessage) {
+            handleMessage((WriteGrantMessage) message);
+        } else if (message instanceof WriteDoneMessage) {
+            handleMessage((WriteDoneMessage) message);
+        } else {
+            handleMessage(message);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package lease;
+
+/**
+ * Coordinates reads and modifications of objects with time bounded read leases
+ * granted by a leader.
+ *
+ * While a node holds a valid lease for an object, the object is not modified, so
+ * the node can serve it without coordination. Before modifying an object, a writer
+ * requests permission to the leader, which revokes the leases of the object and
+ * grants the permission once they are revoked or expired.
+ *
+ */
+public interface LeaseProtocol {
+
+    /**
+     * Result of the acquisition of a lease
+     */
+    public enum Status {
+        /**
+         * The lease is held and the object has not been modified since the previous lease
+         */
+        VALID,
+        /**
+         * The lease is held, but the object may have been modified since the previous lease
+         */
+        CHANGED,
+        /**
+         * The lease could not be obtained
+         */
+        UNAVAILABLE
+    }
+
+    /**
+     * Notified when a lease is revoked
+     */
+    public interface Listener {
+
+        public void revoked(String key);
+    }
+
+    /**
+     * Obtains a read lease for an object, requesting it to the leader if there is no
+     * valid lease. Waits while the object is being modified.
+     *
+     * @param key
+     * @return the status of the lease
+     */
+    public Status acquire(String key);
+
+    /**
+     * Requests permission to modify an object. Waits until all the leases of the
+     * object have been revoked or have expired.
+     *
+     * @param key
+     * @return true if the permission was granted
+     */
+    public boolean beginWrite(String key);
+
+    /**
+     * Notifies the end of a modification, so leases can be granted again
+     *
+     * @param key
+     * @return false if the permission had expired, so leases of the object may
+     *         have been granted before the modification ended
+     */
+    public boolean endWrite(String key);
+
+    public void setListener(Listener listener);
+}
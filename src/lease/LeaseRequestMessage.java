@@ -0,0 +1,9 @@
+package lease;
+
+/**
+ * Requests a read lease for the object given by the attribute "key"
+ *
+ */
+public class LeaseRequestMessage extends dat.Message {
+
+}
@@ -0,0 +1,9 @@
+package lease;
+
+/**
+ * Revokes the read lease of the object given by the attribute "key"
+ *
+ */
+public class LeaseRevokeMessage extends dat.Message {
+
+}
@@ -0,0 +1,10 @@
+package lease;
+
+/**
+ * Acknowledges the revocation of the read lease of the object given by the
+ * attribute "key"
+ *
+ */
+public class LeaseRevokedMessage extends dat.Message {
+
+}
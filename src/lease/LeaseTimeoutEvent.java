@@ -0,0 +1,10 @@
+package lease;
+
+/**
+ * Signals the end of the wait for the revocation of the read leases of an object,
+ * or of the time given to a writer to modify it. The type of the event is the object.
+ *
+ */
+public class LeaseTimeoutEvent extends dat.Event {
+
+}
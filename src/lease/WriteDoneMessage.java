@@ -0,0 +1,9 @@
+package lease;
+
+/**
+ * Notifies the end of the modification of the object given by the attribute "key"
+ *
+ */
+public class WriteDoneMessage extends dat.Message {
+
+}
@@ -0,0 +1,13 @@
+package lease;
+
+/**
+ * Grants permission to modify the object given by the attribute "key", once
+ * all its read leases have been revoked or have expired. The attribute "version"
+ * is the new version of the object, "delay" the milliseconds the leader waited
+ * since it received the request and "duration" the milliseconds the permission
+ * lasts
+ *
+ */
+public class WriteGrantMessage extends dat.Message {
+
+}
@@ -0,0 +1,9 @@
+package lease;
+
+/**
+ * Requests permission to modify the object given by the attribute "key"
+ *
+ */
+public class WriteRequestMessage extends dat.Message {
+
+}
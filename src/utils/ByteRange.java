@@ -0,0 +1,149 @@
+package utils;
+
+/**
+ * A range of bytes of a content, as given by the "Range" header of a request.
+ *
+ * Only single ranges are supported: "bytes=first-last", "bytes=first-" (up to the end)
+ * and "bytes=-length" (the last bytes). The positions are resolved against the length
+ * of the content.
+ *
+ */
+public class ByteRange {
+
+	protected static String UNIT = "bytes=";
+
+	/**
+	 * First position, or -1 for a suffix
+	 */
+	protected long first;
+
+	/**
+	 * Last position (inclusive), -1 for the end of the content, or the length of a suffix
+	 */
+	protected long last;
+
+	public ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * Parses the value of a "Range" header
+	 *
+	 * @return the range, or null if the value is not a valid single range
+	 */
+	public static ByteRange parse(String value) {
+		if (value == null) {
+			return null;
+		}
+		value = value.trim();
+		if (!value.startsWith(UNIT) || value.indexOf(',') >= 0) {
+			return null;
+		}
+
+		String spec = value.substring(UNIT.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				return last.isEmpty() ? null : new ByteRange(-1, Long.parseLong(last));
+			}
+			ByteRange range = new ByteRange(Long.parseLong(first), last.isEmpty() ? -1 : Long.parseLong(last));
+			if (range.first < 0 || (range.last >= 0 && range.last < range.first)) {
+				return null;
+			}
+			return range;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the range has some byte of a content of the given length
+	 */
+	public boolean isSatisfiable(long length) {
+		if (first < 0) {
+			return last > 0 && length > 0;
+		}
+		return first < length;
+	}
+
+	/**
+	 * @return the first position of the range in a content of the given length
+	 */
+	public long getFirst(long length) {
+		if (first < 0) {
+			return Math.max(0, length - last);
+		}
+		return first;
+	}
+
+	/**
+	 * @return the last position (inclusive) of the range in a content of the given length
+	 */
+	public long getLast(long length) {
+		if (first < 0 || last < 0 || last >= length) {
+			return length - 1;
+		}
+		return last;
+	}
+
+	/**
+	 * @return the number of bytes of the range in a content of the given length
+	 */
+	public long getLength(long length) {
+		return getLast(length) - getFirst(length) + 1;
+	}
+
+	/**
+	 * @return the value of the "Content-Range" header for this range of a content
+	 */
+	public String toContentRange(long length) {
+		if (!isSatisfiable(length)) {
+			return "bytes */" + length;
+		}
+		return "bytes " + getFirst(length) + "-" + getLast(length) + "/" + length;
+	}
+
+	/**
+	 * Parses the value of a "Content-Range" header
+	 *
+	 * @return the first position, last position and length of the content, or null if not valid.
+	 *         The positions are -1 for an unsatisfied range
+	 */
+	public static long[] parseContentRange(String value) {
+		if (value == null || !value.trim().startsWith("bytes ")) {
+			return null;
+		}
+		String spec = value.trim().substring("bytes ".length()).trim();
+		int slash = spec.indexOf('/');
+		if (slash < 0) {
+			return null;
+		}
+		try {
+			long length = Long.parseLong(spec.substring(slash + 1).trim());
+			String positions = spec.substring(0, slash).trim();
+			if (positions.equals("*")) {
+				return new long[] { -1, -1, length };
+			}
+			int dash = positions.indexOf('-');
+			return new long[] { Long.parseLong(positions.substring(0, dash).trim()),
+					Long.parseLong(positions.substring(dash + 1).trim()), length };
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (first < 0) {
+			return UNIT + "-" + last;
+		}
+		return UNIT + first + "-" + (last < 0 ? "" : String.valueOf(last));
+	}
+}
@@ -0,0 +1,193 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes the content of objects as stored by the servers.
+ *
+ * An encoded content starts with a header: the {@link #MAGIC} bytes and the method
+ * used to encode it ({@link #IDENTITY} or {@link #GZIP}), followed by the encoded
+ * content. Content without the header is not encoded. The identity method is only
+ * used for content which starts with the magic bytes, so it is not confused with an
+ * encoded one.
+ *
+ * The gzip method stores the content in the gzip format, so it can be sent as is to
+ * clients which accept it ("Content-Encoding: gzip").
+ *
+ */
+public class CompressionUtils {
+
+	/**
+	 * Marks an encoded content
+	 */
+	public static final byte[] MAGIC = { 0, 'C', 'Z', 1 };
+
+	public static final int IDENTITY = 0;
+
+	public static final int GZIP = 1;
+
+	public static final int HEADER_SIZE = MAGIC.length + 1;
+
+	/**
+	 * Encodes a content, compressing it if it has at least a number of bytes and
+	 * compression reduces it to a fraction of its size.
+	 *
+	 * @param content
+	 * @param threshold minimum size to compress the content. If 0, it is not compressed
+	 * @param ratio maximum size of the compressed content relative to the original one
+	 * @return the encoded content
+	 */
+	public static byte[] encode(byte[] content, int threshold, double ratio) throws IOException {
+		if (threshold > 0 && content.length >= threshold) {
+			byte[] compressed = wrap(GZIP, gzip(content));
+			if (compressed.length <= content.length * ratio) {
+				return compressed;
+			}
+		}
+		return identity(content);
+	}
+
+	/**
+	 * Encodes a content without compressing it. Only content starting with the
+	 * magic bytes is changed.
+	 */
+	public static byte[] identity(byte[] content) {
+		if (isEncoded(ByteBuffer.wrap(content))) {
+			return wrap(IDENTITY, content);
+		}
+		return content;
+	}
+
+	/**
+	 * Encodes a content read from a stream without compressing it
+	 *
+	 * @see #identity(byte[])
+	 */
+	public static InputStream identity(InputStream content) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(content, MAGIC.length);
+		byte[] start = new byte[MAGIC.length];
+		int length = 0;
+		int read;
+		while (length < start.length && (read = in.read(start, length, start.length - length)) != -1) {
+			length += read;
+		}
+		in.unread(start, 0, length);
+
+		if (length == MAGIC.length && Arrays.equals(start, MAGIC)) {
+			return wrap(IDENTITY, in);
+		}
+		return in;
+	}
+
+	/**
+	 * Adds the header of a method to an encoded content read from a stream
+	 */
+	public static InputStream wrap(int method, InputStream encoded) {
+		return new SequenceInputStream(new ByteArrayInputStream(wrap(method, new byte[0])), encoded);
+	}
+
+	/**
+	 * Adds the header of a method to an encoded content
+	 */
+	public static byte[] wrap(int method, byte[] encoded) {
+		byte[] content = new byte[HEADER_SIZE + encoded.length];
+		System.arraycopy(MAGIC, 0, content, 0, MAGIC.length);
+		content[MAGIC.length] = (byte) method;
+		System.arraycopy(encoded, 0, content, HEADER_SIZE, encoded.length);
+		return content;
+	}
+
+	/**
+	 * @return true if the content (from its position) has the header of an encoded content
+	 */
+	public static boolean isEncoded(ByteBuffer content) {
+		if (content.remaining() < HEADER_SIZE) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (content.get(content.position() + i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the method used to encode the content
+	 */
+	public static int method(ByteBuffer content) {
+		if (!isEncoded(content)) {
+			return IDENTITY;
+		}
+		return content.get(content.position() + MAGIC.length);
+	}
+
+	/**
+	 * @return the encoded content, without the header, as a view of the content
+	 */
+	public static ByteBuffer payload(ByteBuffer content) {
+		ByteBuffer payload = content.duplicate();
+		if (isEncoded(content)) {
+			payload.position(payload.position() + HEADER_SIZE);
+		}
+		return payload.slice();
+	}
+
+	/**
+	 * Decodes a content
+	 *
+	 * @return the original content
+	 * @throws IOException if the content is not valid
+	 */
+	public static byte[] decode(ByteBuffer content) throws IOException {
+		int method = method(content);
+		ByteBuffer payload = payload(content);
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+
+		switch (method) {
+		case IDENTITY:
+			return bytes;
+		case GZIP:
+			return gunzip(bytes);
+		default:
+			throw new IOException("Unknown encoding " + method);
+		}
+	}
+
+	public static byte[] decode(byte[] content) throws IOException {
+		return decode(ByteBuffer.wrap(content));
+	}
+
+	public static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+		GZIPOutputStream out = new GZIPOutputStream(compressed);
+		out.write(content);
+		out.close();
+		return compressed.toByteArray();
+	}
+
+	public static byte[] gunzip(byte[] compressed) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream(compressed.length * 4);
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
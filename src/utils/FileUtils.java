@@ -1,13 +1,20 @@
 package utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 /**
  * Utility functions to manipulate files
@@ -17,6 +24,11 @@ import java.io.OutputStream;
  */
 public class FileUtils {
 
+	/**
+	 * Size of the buffer used to copy streams
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
 	/**
 	 * Read the entire content of a stream and returns it as a byte array
 	 * 
@@ -27,34 +39,102 @@ public class FileUtils {
 	public static byte[] readBytesFromStream(InputStream stream) throws IOException {
 		
 		
-		//buffer for content from stream
-		StringBuffer contentBuffer = new StringBuffer();
+		//buffer for content from stream. Bytes are copied as is, content may be binary
+		ByteArrayOutputStream contentBuffer = new ByteArrayOutputStream();
 
-		InputStreamReader contentReader = new InputStreamReader(stream);
-		
-		//small buffer to read ahead chars
-		char[] buffer = new char[128];
+		byte[] buffer = new byte[8192];
 
 		//read and append while not EOF (read == -1)
 		int read;
 
-		while( (read = contentReader.read(buffer)) != -1){
-			contentBuffer.append(buffer,0,read);
+		while( (read = stream.read(buffer)) != -1){
+			contentBuffer.write(buffer,0,read);
 		}
 		
-		return contentBuffer.toString().getBytes();
+		return contentBuffer.toByteArray();
 
 	}
 	
+	/**
+	 * Reads a content of known length from a stream, directly into an array of that size
+	 * 
+	 * @param stream
+	 * @param length length of the content, or -1 if unknown
+	 * @return a byte array with the content from the stream
+	 * @throws EOFException if the stream ends before the length
+	 */
+	public static byte[] readBytesFromStream(InputStream stream,long length) throws IOException {
+		
+		if(length < 0 || length > Integer.MAX_VALUE){
+			return readBytesFromStream(stream);
+		}
+		
+		byte[] content = new byte[(int)length];
+		int offset = 0;
+		while(offset < content.length){
+			int read = stream.read(content, offset, content.length - offset);
+			if(read == -1){
+				throw new EOFException("Content ended after " + offset + " of " + length + " bytes");
+			}
+			offset += read;
+		}
+		return content;
+	}
+	
 	
 	public static byte[] readBytesFromFile(String path,String file) throws FileNotFoundException, IOException{
 		return readBytesFromFile(path + File.separator + file);
 	}
 	
+	/**
+	 * Reads the content of a file into an array of its size, with positional reads
+	 */
 	public static byte[] readBytesFromFile(String path) throws FileNotFoundException, IOException{
 
-			FileInputStream ios = new FileInputStream(path);
-			return readBytesFromStream(ios);
+		FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+		try{
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE){
+				throw new IOException("File " + path + " is too large to be read at once");
+			}
+			ByteBuffer content = readFromChannel(channel, 0, (int)size);
+			if(content.remaining() < size){
+				//the file was truncated while read
+				return Arrays.copyOf(content.array(), content.remaining());
+			}
+			return content.array();
+		}finally{
+			channel.close();
+		}
+	}
+	
+	
+	/**
+	 * Opens a file for reading at arbitrary positions
+	 * 
+	 * @throws FileNotFoundException if the file doesn't exist
+	 */
+	public static FileChannel openChannel(String path,String file) throws FileNotFoundException{
+		return new RandomAccessFile(path + File.separator + file, "r").getChannel();
+	}
+	
+	/**
+	 * Reads a number of bytes of a file from a position (positional read). The position 
+	 * of the channel is not modified, so concurrent reads can share the channel.
+	 * 
+	 * @return a buffer with the bytes read, from its position to its limit. Has less than 
+	 * length bytes if the file ends before
+	 */
+	public static ByteBuffer readFromChannel(FileChannel channel,long position,int length) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()){
+			int read = channel.read(buffer, position + buffer.position());
+			if(read == -1){
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
 	}
 	
 	
@@ -65,9 +145,150 @@ public class FileUtils {
 	}
 
 	public static void writeBytesToFile(String path,byte[] content) throws IOException{
-			File file = new File(path);
-			FileOutputStream fos = new FileOutputStream(file);
-			writeBytesToStream(fos,content);
+			FileChannel channel = new FileOutputStream(path).getChannel();
+			try{
+				ByteBuffer buffer = ByteBuffer.wrap(content);
+				while(buffer.hasRemaining()){
+					channel.write(buffer);
+				}
+			}finally{
+				channel.close();
+			}
+	}
+	
+	
+	/**
+	 * Writes the content of a stream to a file, through a buffer of fixed size
+	 * 
+	 * @return the number of bytes written
+	 */
+	public static long writeStreamToFile(String directory,String file,InputStream content) throws FileNotFoundException,IOException{
+		FileOutputStream fos = new FileOutputStream(directory + File.separator + file);
+		try{
+			return copyStream(content, fos);
+		}finally{
+			fos.close();
+		}
+	}
+	
+	
+	/**
+	 * Copies the content of a stream to another through a buffer of fixed size. 
+	 * The streams are not closed.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	public static long copyStream(InputStream in,OutputStream out) throws IOException{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long copied = 0;
+		int read;
+		while((read = in.read(buffer)) != -1){
+			out.write(buffer, 0, read);
+			copied += read;
+		}
+		return copied;
+	}
+	
+	
+	/**
+	 * Transfers a region of a file to a stream with {@link FileChannel#transferTo}. The
+	 * stream is wrapped in a channel, so the bytes are still copied through a buffer in
+	 * the heap, but without reading the whole region into memory.
+	 * The position of the channel is not modified and the stream is not closed.
+	 * 
+	 * @return the number of bytes transferred
+	 */
+	public static long transferToStream(FileChannel channel,long position,long count,OutputStream out) throws IOException{
+		WritableByteChannel target = Channels.newChannel(out);
+		long transferred = 0;
+		while(transferred < count){
+			long sent = channel.transferTo(position + transferred, count - transferred, target);
+			if(sent <= 0){
+				//the file is shorter than expected
+				break;
+			}
+			transferred += sent;
+		}
+		return transferred;
+	}
+	
+	
+	/**
+	 * Returns a stream over a region of a file, read with positional reads. The position
+	 * of the channel is not modified and closing the stream doesn't close the channel.
+	 */
+	public static InputStream openStream(final FileChannel channel,final long position,final long length){
+		return new InputStream() {
+			
+			private long read = 0;
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+			}
+			
+			@Override
+			public int read(byte[] b,int off,int len) throws IOException {
+				if(read >= length){
+					return -1;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, (int)Math.min(len, length - read));
+				int n = channel.read(buffer, position + read);
+				if(n == -1){
+					return -1;
+				}
+				read += n;
+				return n;
+			}
+			
+			@Override
+			public int available() {
+				return (int)Math.min(Integer.MAX_VALUE, length - read);
+			}
+		};
+	}
+	
+	
+	/**
+	 * Copies the content of a channel to a stream through a buffer of fixed size. 
+	 * The channel and the stream are not closed.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	public static long copyChannel(ReadableByteChannel in,OutputStream out) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long copied = 0;
+		int read;
+		while((read = in.read(buffer)) != -1){
+			out.write(buffer.array(), 0, read);
+			copied += read;
+			buffer.clear();
+		}
+		return copied;
+	}
+	
+	
+	/**
+	 * Copies up to a number of bytes of a channel to a stream through a buffer of fixed
+	 * size. The channel and the stream are not closed.
+	 * 
+	 * @return the number of bytes copied, less than the number requested if the channel ends
+	 */
+	public static long copyChannel(ReadableByteChannel in,OutputStream out,long count) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(BUFFER_SIZE, Math.max(1, count)));
+		long copied = 0;
+		while(copied < count){
+			buffer.limit((int)Math.min(buffer.capacity(), count - copied));
+			int read = in.read(buffer);
+			if(read == -1){
+				break;
+			}
+			out.write(buffer.array(), 0, read);
+			copied += read;
+			buffer.clear();
+		}
+		return copied;
 	}
 	
 	
@@ -76,6 +297,38 @@ public class FileUtils {
 		out.close();
 	}
 	
+	/**
+	 * Writes the remaining content of a buffer to a stream and closes it.
+	 * The buffer is written through a channel, so direct buffers are copied
+	 * in small chunks instead of as a whole. The position of the buffer is not modified.
+	 * 
+	 * @param out
+	 * @param content
+	 * @throws IOException
+	 */
+	public static void writeBufferToStream(OutputStream out,ByteBuffer content) throws IOException{
+		WritableByteChannel channel = Channels.newChannel(out);
+		ByteBuffer buffer = content.duplicate();
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+		channel.close();
+	}
+	
+	/**
+	 * Returns the size of a file, or 0 if it doesn't exist
+	 */
+	public static long fileSize(String path,String file){
+		return new File(path + File.separator + file).length();
+	}
+	
+	/**
+	 * Returns the time of the last modification of a file, or 0 if it doesn't exist
+	 */
+	public static long lastModified(String path,String file){
+		return new File(path + File.separator + file).lastModified();
+	}
+	
 	public static String[] listDirectory(String path){
 		File directory = new File(path);		
 		return directory.list();
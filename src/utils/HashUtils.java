@@ -0,0 +1,68 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes hashes of the content of objects
+ *
+ */
+public class HashUtils {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * @return the SHA-256 digest of the content, in hexadecimal
+	 */
+	public static String sha256(byte[] content) {
+		return sha256(ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * @return the SHA-256 digest of the content, from its position to its limit, in
+	 *         hexadecimal. The position of the buffer is not changed
+	 */
+	public static String sha256(ByteBuffer content) {
+		MessageDigest digest = sha256();
+		digest.update(content.duplicate());
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @return the SHA-256 digest of the content read from a channel, in hexadecimal. The
+	 *         content is read through a buffer of fixed size
+	 */
+	public static String sha256(ReadableByteChannel content) throws IOException {
+		MessageDigest digest = sha256();
+		ByteBuffer buffer = ByteBuffer.allocate(FileUtils.BUFFER_SIZE);
+		while (content.read(buffer) != -1) {
+			buffer.flip();
+			digest.update(buffer);
+			buffer.clear();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @return a new SHA-256 digest
+	 */
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
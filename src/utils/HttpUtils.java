@@ -3,7 +3,21 @@ package utils;
 
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Makes Http requests
@@ -15,6 +29,17 @@ public class HttpUtils {
 
 	private static int HTTP_OK = 200;
 
+	private static int HTTP_NOT_MODIFIED = 304;
+
+	private static int HTTP_PARTIAL_CONTENT = 206;
+
+	private static int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/**
+	 * Header with the cursor of the next page of a list of objects
+	 */
+	private static String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
 	public static class HttpException extends Exception{
 
 		protected int code;
@@ -44,6 +69,282 @@ public class HttpUtils {
 		}
 	}
 	
+	/**
+	 * Content of an object as stored by a server, with its entity tag
+	 */
+	public static class Stored {
+
+		protected byte[] content;
+
+		protected String etag;
+
+		public Stored(byte[] content, String etag) {
+			this.content = content;
+			this.etag = etag;
+		}
+
+		/**
+		 * @return the content, or null if not modified since the version given in the request
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * @return the entity tag of the content, or null if the server didn't send it
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		public boolean isModified() {
+			return content != null;
+		}
+	}
+	
+	/**
+	 * A part of the content of an object, as sent by a server. The bytes of the part
+	 * are in memory, or read from a channel when sent, so parts of any size are sent
+	 * through a buffer of fixed size
+	 */
+	public static class Part {
+
+		protected ByteBuffer content;
+
+		/**
+		 * Channel with the bytes of the part, if they are not in memory
+		 */
+		protected ReadableByteChannel channel;
+
+		/**
+		 * Position of the part in the channel, if it is a file
+		 */
+		protected long position;
+
+		/**
+		 * Number of bytes of the part
+		 */
+		protected long count;
+
+		protected long first;
+
+		protected long length;
+
+		protected boolean gzip;
+
+		/**
+		 * @param content bytes of the part, or null if the range is not satisfiable
+		 * @param first position of the part in the content
+		 * @param length length of the whole content
+		 * @param gzip true if the content is encoded with gzip
+		 */
+		public Part(ByteBuffer content, long first, long length, boolean gzip) {
+			this.content = content;
+			this.count = (content == null) ? 0 : content.remaining();
+			this.first = first;
+			this.length = length;
+			this.gzip = gzip;
+		}
+
+		/**
+		 * @param channel channel with the bytes of the part, closed once they are sent. A
+		 *        file is read from the position, any other channel from its current position
+		 * @param position position of the part in the file
+		 * @param count number of bytes of the part
+		 * @param first position of the part in the content
+		 * @param length length of the whole content
+		 * @param gzip true if the content is encoded with gzip
+		 */
+		public Part(ReadableByteChannel channel, long position, long count, long first, long length, boolean gzip) {
+			this.channel = channel;
+			this.position = position;
+			this.count = count;
+			this.first = first;
+			this.length = length;
+			this.gzip = gzip;
+		}
+
+		/**
+		 * Copies a range of a content
+		 */
+		public static Part slice(ByteBuffer content, ByteRange range, boolean gzip) {
+			long length = content.remaining();
+			if (!range.isSatisfiable(length)) {
+				return new Part(null, -1, length, gzip);
+			}
+			ByteBuffer view = content.duplicate();
+			view.position(view.position() + (int) range.getFirst(length));
+			view.limit(view.position() + (int) range.getLength(length));
+			ByteBuffer part = ByteBuffer.allocate(view.remaining());
+			part.put(view);
+			part.flip();
+			return new Part(part, range.getFirst(length), length, gzip);
+		}
+
+		/**
+		 * @return the bytes of the part, from the position to the limit, or null if the 
+		 * range is not satisfiable or the part is read from a channel
+		 */
+		public ByteBuffer getContent() {
+			return content;
+		}
+
+		/**
+		 * @return the number of bytes of the part
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Writes the bytes of the part to a stream, which is not closed
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			if (content != null) {
+				FileUtils.writeBufferToStream(out, content);
+			} else if (channel instanceof FileChannel) {
+				FileUtils.transferToStream((FileChannel) channel, position, count, out);
+			} else if (channel != null) {
+				FileUtils.copyChannel(channel, out, count);
+			}
+		}
+
+		/**
+		 * Closes the channel of the part, if any
+		 */
+		public void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+
+		public long getFirst() {
+			return first;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public boolean isGzip() {
+			return gzip;
+		}
+
+		public boolean isSatisfied() {
+			return content != null || channel != null;
+		}
+
+		/**
+		 * @return the value of the "Content-Range" header for the part
+		 */
+		public String toContentRange() {
+			if (!isSatisfied()) {
+				return "bytes */" + length;
+			}
+			return "bytes " + first + "-" + (first + count - 1) + "/" + length;
+		}
+	}
+	
+	/**
+	 * Metadata of the content of an object as stored by a server, to answer requests
+	 * without the content
+	 */
+	public static class Head {
+
+		protected ByteBuffer header;
+
+		protected long size;
+
+		protected long lastModified;
+
+		protected String etag;
+
+		/**
+		 * @param header first bytes of the stored content, with the header if it is encoded
+		 *        (see {@link CompressionUtils})
+		 * @param size size of the stored content, or -1 if unknown
+		 * @param lastModified time of the last modification, or 0 if unknown
+		 * @param etag entity tag of the content, or null if unknown
+		 */
+		public Head(ByteBuffer header, long size, long lastModified, String etag) {
+			this.header = header;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.etag = etag;
+		}
+
+		/**
+		 * Takes the metadata from a stored content
+		 */
+		public static Head of(ByteBuffer content, long lastModified, String etag) {
+			ByteBuffer view = content.duplicate();
+			view.limit(view.position() + Math.min(view.remaining(), CompressionUtils.HEADER_SIZE));
+			ByteBuffer header = ByteBuffer.allocate(view.remaining());
+			header.put(view);
+			header.flip();
+			return new Head(header, content.remaining(), lastModified, etag);
+		}
+
+		public ByteBuffer getHeader() {
+			return header.duplicate();
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * @param gzip true if the content is sent compressed
+		 * @return the length of the body sent for the content, or -1 if unknown because the
+		 *         content is decompressed when sent
+		 */
+		public long getBodyLength(boolean gzip) {
+			if (size < 0 || (CompressionUtils.method(header) == CompressionUtils.GZIP && !gzip)) {
+				return -1;
+			}
+			return CompressionUtils.isEncoded(header) ? size - CompressionUtils.HEADER_SIZE : size;
+		}
+	}
+
+	/**
+	 * A page of the list of objects of a data server
+	 */
+	public static class Listing {
+
+		protected List<ObjectInfo> objects;
+
+		protected String cursor;
+
+		/**
+		 * @param objects metadata of the objects of the page
+		 * @param cursor name to request the next page after, or null if this is the last one
+		 */
+		public Listing(List<ObjectInfo> objects, String cursor) {
+			this.objects = objects;
+			this.cursor = cursor;
+		}
+
+		public List<ObjectInfo> getObjects() {
+			return objects;
+		}
+
+		public String getCursor() {
+			return cursor;
+		}
+
+		public boolean isLast() {
+			return cursor == null;
+		}
+	}
+
 	public static void delete(String host,String url) throws IOException, HttpException {
 		
 		delete(host+url);
@@ -71,30 +372,284 @@ public class HttpUtils {
 	
 	public static byte[] get(String url) throws IOException, HttpException  {
 
-		byte[] content = new byte[0];
-		
 		HttpURLConnection serverConnection;
 
 		URL serverUrl = new URL(url);
 		serverConnection = (HttpURLConnection)serverUrl.openConnection();
 		serverConnection.setRequestMethod("GET");   
-		String type=serverConnection.getContentType();
-		String header=serverConnection.getHeaderField("Server");
-		int length=Integer.parseInt(serverConnection.getHeaderField("Content-length"));
 
-		//IF OK, read content
-		if(serverConnection.getResponseCode() == HttpURLConnection.HTTP_OK){
-			content = new byte[length];
-			serverConnection.getInputStream().read(content, 0, length);
+		//check the status before looking at the content
+		int rc = serverConnection.getResponseCode();
+		if(rc != HTTP_OK) {
+			throw new HttpException(rc);
+		}
+
+		//content length is not sent for empty content
+		int length = serverConnection.getContentLength();
+		InputStream in = serverConnection.getInputStream();
+		try{
+			return readContent(in, length);
+		}finally{
+			in.close();
+		}
+
+	}
+
+
+	/**
+	 * Gets the content of an object as stored by the server, without decompressing
+	 * it (see {@link CompressionUtils}).
+	 */
+	public static byte[] getStored(String host,String url) throws IOException, HttpException {
+		return getStored(host+url);
+	}
+
+	public static byte[] getStored(String url) throws IOException, HttpException {
+		return getStoredVersion(url, null).getContent();
+	}
+
+
+	public static Stored getStoredVersion(String host,String url,String etag) throws IOException, HttpException {
+		return getStoredVersion(host+url,etag);
+	}
+
+	/**
+	 * Gets the content of an object as stored by the server, if it doesn't match a
+	 * version already known (conditional request). Only the headers are transferred if 
+	 * the version hasn't changed.
+	 * 
+	 * @param url
+	 * @param etag entity tag of the known version, or null to get the content unconditionally
+	 * @return the content and its tag. If the version hasn't changed, the content is null
+	 */
+	public static Stored getStoredVersion(String url,String etag) throws IOException, HttpException {
+
+		HttpURLConnection serverConnection;
+
+		URL serverUrl = new URL(url);
+		serverConnection = (HttpURLConnection)serverUrl.openConnection();
+		serverConnection.setRequestMethod("GET");
+		serverConnection.setRequestProperty("Accept-Encoding", "gzip");
+		if(etag != null){
+			serverConnection.setRequestProperty("If-None-Match", etag);
 		}
 
 		int rc = serverConnection.getResponseCode();
+		if(rc == HTTP_NOT_MODIFIED && etag != null) {
+			String current = serverConnection.getHeaderField("ETag");
+			return new Stored(null, current != null ? current : etag);
+		}
 		if(rc != HTTP_OK) {
 			throw new HttpException(rc);
 		}
-		
+
+		int length = serverConnection.getContentLength();
+		InputStream in = serverConnection.getInputStream();
+		byte[] content;
+		try{
+			content = readContent(in, length);
+		}finally{
+			in.close();
+		}
+
+		String encoding = serverConnection.getContentEncoding();
+		if(encoding != null && encoding.equalsIgnoreCase("gzip")){
+			content = CompressionUtils.wrap(CompressionUtils.GZIP, content);
+		}
+		else{
+			content = CompressionUtils.identity(content);
+		}
+		return new Stored(content, serverConnection.getHeaderField("ETag"));
+	}
+
+
+	public static Head head(String host,String url) throws IOException, HttpException {
+		return head(host+url);
+	}
+
+	/**
+	 * Gets the metadata of the content of an object as stored by the server, without 
+	 * the content (HEAD request)
+	 * 
+	 * @param url
+	 * @return the metadata. The header only tells if the content is compressed
+	 */
+	public static Head head(String url) throws IOException, HttpException {
+
+		HttpURLConnection serverConnection;
+
+		URL serverUrl = new URL(url);
+		serverConnection = (HttpURLConnection)serverUrl.openConnection();
+		serverConnection.setRequestMethod("HEAD");
+		serverConnection.setRequestProperty("Accept-Encoding", "gzip");
+
+		int rc = serverConnection.getResponseCode();
+		if(rc != HTTP_OK) {
+			throw new HttpException(rc);
+		}
+
+		long length = serverConnection.getContentLengthLong();
+		String encoding = serverConnection.getContentEncoding();
+		ByteBuffer header = ByteBuffer.allocate(0);
+		if(encoding != null && encoding.equalsIgnoreCase("gzip")){
+			header = ByteBuffer.wrap(CompressionUtils.wrap(CompressionUtils.GZIP, new byte[0]));
+			if(length >= 0){
+				length += CompressionUtils.HEADER_SIZE;
+			}
+		}
+		return new Head(header, length, serverConnection.getLastModified(), serverConnection.getHeaderField("ETag"));
+	}
+
+
+	public static Part getRange(String host,String url,ByteRange range,boolean gzip) throws IOException, HttpException {
+		return getRange(host+url,range,gzip);
+	}
+
+	/**
+	 * Gets a range of the content of an object. If the server doesn't support ranges,
+	 * the range is taken from the whole content.
+	 * 
+	 * @param url
+	 * @param range
+	 * @param gzip true to accept the range of the content compressed with gzip, if
+	 *        stored that way
+	 * @return the part of the content. A partial response is read as the part is sent,
+	 *         and closed by {@link Part#close()}
+	 */
+	public static Part getRange(String url,ByteRange range,boolean gzip) throws IOException, HttpException {
+
+		HttpURLConnection serverConnection;
+
+		URL serverUrl = new URL(url);
+		serverConnection = (HttpURLConnection)serverUrl.openConnection();
+		serverConnection.setRequestMethod("GET");
+		serverConnection.setRequestProperty("Range", range.toString());
+		if(gzip){
+			serverConnection.setRequestProperty("Accept-Encoding", "gzip");
+		}
+
+		int rc = serverConnection.getResponseCode();
+		String encoding = serverConnection.getContentEncoding();
+		boolean gzipped = encoding != null && encoding.equalsIgnoreCase("gzip");
+
+		if(rc == HTTP_RANGE_NOT_SATISFIABLE){
+			long[] contentRange = ByteRange.parseContentRange(serverConnection.getHeaderField("Content-Range"));
+			if(contentRange == null){
+				throw new HttpException(rc);
+			}
+			return new Part(null, -1, contentRange[2], gzipped);
+		}
+		if(rc != HTTP_OK && rc != HTTP_PARTIAL_CONTENT) {
+			throw new HttpException(rc);
+		}
+
+		InputStream in = serverConnection.getInputStream();
+		if(rc == HTTP_OK){
+			byte[] content;
+			try{
+				content = readContent(in, serverConnection.getContentLength());
+			}finally{
+				in.close();
+			}
+			return Part.slice(ByteBuffer.wrap(content), range, gzipped);
+		}
+
+		//the part is read from the response as it is sent
+		long[] contentRange = ByteRange.parseContentRange(serverConnection.getHeaderField("Content-Range"));
+		if(contentRange == null || contentRange[0] < 0){
+			in.close();
+			throw new IOException("Invalid content range of " + url);
+		}
+		return new Part(Channels.newChannel(in), 0, contentRange[1] - contentRange[0] + 1, contentRange[0],
+				contentRange[2], gzipped);
+	}
+
+
+	private static byte[] toBytes(ByteBuffer buffer){
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+
+	/**
+	 * Reads the content of a response. A single read may return only part of
+	 * the content, so reads until the expected length or the end of the stream.
+	 * 
+	 * @param in stream with the content
+	 * @param length expected length, or -1 if unknown
+	 * @return the content
+	 * @throws IOException if the stream ends before the expected length
+	 */
+	protected static byte[] readContent(InputStream in,int length) throws IOException{
+
+		if(length < 0){
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1){
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		}
+
+		byte[] content = new byte[length];
+		int offset = 0;
+		while(offset < length){
+			int read = in.read(content, offset, length - offset);
+			if(read == -1){
+				throw new EOFException("Content ended after " + offset + " of " + length + " bytes");
+			}
+			offset += read;
+		}
 		return content;
+	}
+
+
+	/**
+	 * Gets a page of the list of objects of a data server
+	 * 
+	 * @param host url of the data server
+	 * @param after name of the last object of the previous page, or null for the first page
+	 * @param limit maximum number of objects of the page
+	 * @return the page, in the order returned by the server
+	 */
+	public static Listing list(String host, String after, int limit) throws IOException, HttpException {
+
+		String query = "?list&limit=" + limit;
+		if(after != null){
+			query += "&after=" + URLEncoder.encode(after, "UTF-8");
+		}
+
+		HttpURLConnection serverConnection = (HttpURLConnection)new URL(host + query).openConnection();
+		serverConnection.setRequestMethod("GET");
 
+		int rc = serverConnection.getResponseCode();
+		if(rc != HTTP_OK) {
+			throw new HttpException(rc);
+		}
+
+		String cursor = serverConnection.getHeaderField(NEXT_CURSOR_HEADER);
+		if(cursor != null){
+			cursor = URLDecoder.decode(cursor, "UTF-8");
+		}
+
+		List<ObjectInfo> objects = new ArrayList<ObjectInfo>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				serverConnection.getInputStream(), "UTF-8"));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				ObjectInfo info = ObjectInfo.parseLine(line);
+				if(info != null){
+					objects.add(info);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+
+		return new Listing(objects, cursor);
 	}
 
 
@@ -103,6 +658,13 @@ public class HttpUtils {
 	}
 	
 	
+	/**
+	 * Puts the content of an object. The content can be encoded as stored by the
+	 * servers (see {@link CompressionUtils}): compressed content is sent compressed 
+	 * and stored as is by the server.
+	 * 
+	 * @return the response code
+	 */
 	public static int put(String url, byte[] content) throws IOException {
 
 		HttpURLConnection serverConnection;
@@ -111,6 +673,16 @@ public class HttpUtils {
 		serverConnection = (HttpURLConnection)serverUrl.openConnection();
 		serverConnection.setDoOutput(true);
 
+		ByteBuffer stored = ByteBuffer.wrap(content);
+		if(CompressionUtils.isEncoded(stored)){
+			if(CompressionUtils.method(stored) == CompressionUtils.GZIP){
+				serverConnection.setRequestProperty("Content-Encoding", "gzip");
+				content = toBytes(CompressionUtils.payload(stored));
+			}
+			else{
+				content = CompressionUtils.decode(stored);
+			}
+		}
 
 		serverConnection.setRequestMethod("PUT");   
 		serverConnection.setRequestProperty("Content-type", "application/octet-stream");
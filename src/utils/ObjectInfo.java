@@ -0,0 +1,80 @@
+package utils;
+
+/**
+ * Metadata of an object stored in a data server
+ *
+ */
+public class ObjectInfo {
+
+	protected String name;
+
+	/**
+	 * Size of the content, in bytes
+	 */
+	protected long size;
+
+	/**
+	 * Time of the last modification, in milliseconds since the epoch
+	 */
+	protected long lastModified;
+
+	/**
+	 * Hash (SHA-256) of the content, in hexadecimal. Null if unknown
+	 */
+	protected String hash;
+
+	public ObjectInfo(String name, long size, long lastModified) {
+		this(name, size, lastModified, null);
+	}
+
+	public ObjectInfo(String name, long size, long lastModified, String hash) {
+		this.name = name;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.hash = hash;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Formats the metadata as a line of a listing: name, size, last modification
+	 * and hash, if known, separated by tabs
+	 */
+	public String toLine() {
+		String line = name + "\t" + size + "\t" + lastModified;
+		return (hash == null) ? line : line + "\t" + hash;
+	}
+
+	/**
+	 * Parses a line of a listing
+	 *
+	 * @see #toLine()
+	 * @return the metadata, or null if the line is not valid
+	 */
+	public static ObjectInfo parseLine(String line) {
+		String[] fields = line.split("\t");
+		if (fields.length < 3) {
+			return null;
+		}
+		try {
+			return new ObjectInfo(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+					(fields.length > 3) ? fields[3] : null);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -1,17 +1,56 @@
 package web;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.configuration.Configuration;
 
+import utils.ByteRange;
 import utils.HttpUtils;
+import utils.HttpUtils.Head;
 import utils.HttpUtils.HttpException;
+import utils.HttpUtils.Part;
+import utils.ObjectInfo;
+import web.cache.CacheSnapshot;
+import web.cache.HashRing;
+import web.cache.HeavyHitters;
+import web.cache.NegativeCache;
+import web.cache.ObjectCache;
+import web.cache.SingleFlight;
+import web.cache.SlabAllocator;
+import web.cache.WriteBehindQueue;
+import lease.LeaseProtocol;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import dat.Message;
+import dat.algorithms.gcast.GroupcastHandler;
+import dat.algorithms.gcast.GroupcastProtocol;
 import dat.algorithms.leader.LeaderElection;
+import dat.algorithms.membership.MembershipAlgorithm;
 import dat.algorithms.transaction.ResourceManager;
 import dat.algorithms.transaction.TransactionCoordinator;
 import dat.core.DAT;
+import dat.network.NodeAddress;
 
 /**
  * Implements a cache server that serves content from the data server and
@@ -32,46 +71,334 @@ import dat.core.DAT;
  * from the coordinator, but assumes that there is only one concurrent modification
  * (the requests messages are serialized by the node, see DAT documentation). 
  * 
- * Each cache entry is locked individually. Local read requests are
- * locked while the resource is being modified. If multiple modification
- * request are received, there are queued and are processed before the local
- * read can proceed. This may lead to unbounded delay of reads, but
- * it is assumed that his rarely will happen. 
+ * Each cache entry keeps its last committed version and, while a transaction
+ * is in progress, the version pending for commit, tagged with the transaction's id.
+ * Local reads always get the committed version and never wait for transactions.
+ * Modifications of an entry are serialized by locking it individually from the
+ * lock request to the commit or abort of the transaction. The commit publishes
+ * the pending version and the abort discards it. The leader updates the data server
+ * when the transaction commits, so an aborted transaction leaves nothing to undo.
+ * 
+ * Concurrent misses of the same object are coalesced in a single request to the
+ * data server. If the object is modified while it is being retrieved, the retrieved
+ * content is returned to the waiting readers but it is not cached.
+ * 
+ * Objects not found in the data server are remembered during "negative.ttl"
+ * seconds, so further requests are answered without contacting the data server. 
+ * Up to "negative.capacity" missing objects are remembered. Creating the object 
+ * with a transaction removes it from the missing objects.
+ * 
+ * If "warmup.budget" is set, on start up the server loads objects from the data
+ * server until that number of bytes. Objects are loaded in batches of "warmup.batch"
+ * objects, using "warmup.threads" concurrent threads. The server doesn't accept
+ * requests until the warm up ends.
+ * 
+ * If "snapshot.file" is set, the content of the cache is saved to that file
+ * when the server stops and, if "snapshot.period" is set, periodically with that
+ * period (in seconds). Only objects whose content is the one the data server has are
+ * saved. On start up, the objects in the snapshot whose content is still the same in
+ * the data server are restored, before the warm up.
+ * 
+ * The cache is bounded by a number of bytes (parameter "cache.capacity"). When
+ * full, entries are evicted following the policy given by the "cache.policy"
+ * parameter ("lru" or "tinylfu"). Evicted entries are retrieved again from the data
+ * server on the next access. If "cache.report" is set, the usage statistics of the
+ * cache are logged with that period (in seconds).
+ * 
+ * Objects are cached as stored in the data server, compressed if they were
+ * compressed when stored (see {@link WebServer}), and sent compressed to the clients
+ * which accept it.
+ * 
+ * If "cache.storage" is "offheap", the content of the objects is kept in direct
+ * memory, allocated in slabs of "cache.slab" bytes, and GET requests are served
+ * directly from it. Otherwise ("heap"), contents are kept as byte arrays.
+ * 
+ * If "coherence" is "invalidate", modifications don't use transactions. The server
+ * receiving the modification updates the data server and casts an invalidation of the
+ * object to the other servers, using the groupcast algorithm given by the "gcast"
+ * parameter and the nodes of the "membership" algorithm. The servers discard the
+ * object and retrieve it again from the data server on the next access. Otherwise
+ * ("update"), the new content is sent to all the servers in a transaction.
+ * 
+ * If "coherence" is "lease", modifications don't use transactions either. The
+ * servers read objects under read leases granted by the leader through the lease
+ * algorithm given by the "lease" parameter. While a server holds a valid lease for an
+ * object, it serves the object from its cache without coordination. A lease granted
+ * after the object was modified discards the cached copy. A modification waits for the
+ * leader to revoke the leases of the object, updates the data server and then lets
+ * the leader grant leases again. If a lease can't be obtained, the object is read from
+ * the data server and not cached.
+ * 
+ * If "batch.window" is set, concurrent modifications of distinct objects are
+ * grouped in a single transaction. The first modification waits that number of
+ * milliseconds for others, up to "batch.size" objects and "batch.bytes" bytes. The
+ * resource of a batch is the list of its objects, separated by new lines, and the
+ * operation is BATCH, with the content of each object. The objects are locked in
+ * order, so batches with objects in common can't deadlock.
+ * 
+ * If "shard.replicas" is set, the objects are partitioned among the servers instead
+ * of replicated in all of them. The servers responsible for each object (its replicas)
+ * are selected with a consistent hash ring of the nodes of the membership algorithm,
+ * with "shard.vnodes" points per node. The first replica is the owner of the object.
+ * Other servers don't cache the object: they retrieve it from its replicas, in order,
+ * and from the data server if none answers. The "shard.peers" parameter gives the
+ * url of the cache server of each node, as "location=url". The transactions still reach
+ * all the nodes, as the coordinator can't select the participants, but only the replicas
+ * keep the new content. Invalidations are cast only to the replicas.
+ * 
+ * If "hotkeys.top" is set, the server tracks that number of most accessed objects
+ * (heavy hitters) separately for reads, modifications requested to this server and
+ * transactions, estimating the frequencies of about "hotkeys.keys" distinct objects.
+ * They are listed, with their estimated recent accesses, at the "admin.hotkeys" path
+ * (the "n" query parameter limits the number of objects). If "hotkeys.pin" is set,
+ * that number of most read objects is pinned in the cache, refreshed every
+ * "hotkeys.period" seconds.
+ * 
+ * If "writebehind.journal" is set, the leader doesn't update the data server
+ * when the transaction commits. The modifications are recorded in that journal file and
+ * sent to the data server in the background, in batches of up to "writebehind.batch"
+ * objects, at most "writebehind.lag" milliseconds later. Repeated modifications of
+ * an object are sent once. When the modifications pending exceed "writebehind.limit"
+ * bytes, transactions wait for them to be sent. If "writebehind.sync" is true, the
+ * journal is forced to disk on each modification. Objects evicted from the cache
+ * can be read outdated from the data server until their modifications are sent,
+ * except in the leader. A server which is no longer the leader discards the
+ * modifications it has not sent, so they don't overwrite the ones of the new leader.
+ * 
+ * The entity tag of each version is computed when the version is applied or
+ * retrieved from the data server. Discarded copies are kept, marked as stale, with
+ * their tag: the next read revalidates them with a conditional request to the data
+ * server, which only sends the content if it has changed.
+ * 
+ * Ranges of cached objects are copied from the cache. Ranges of objects not cached
+ * (or stale) are requested to the data server, which only sends the range, and are
+ * not cached: the object is cached when read as a whole.
  * 
  * 
  * @author Pablo Chacin
  *
  */
-public class CacheServer extends WebServer implements ResourceManager, Runnable {
+public class CacheServer extends WebServer implements ResourceManager, GroupcastHandler, Runnable {
+
+    protected static long DEFAULT_CACHE_CAPACITY = 64 * 1024 * 1024;
+
+    protected static String DEFAULT_CACHE_POLICY = "tinylfu";
+
+    protected static String DEFAULT_CACHE_STORAGE = "heap";
+
+    protected static int DEFAULT_NEGATIVE_CAPACITY = 10000;
+
+    protected static long DEFAULT_NEGATIVE_TTL = 30;
+
+    protected static int DEFAULT_WARMUP_THREADS = 4;
+
+    protected static int DEFAULT_WARMUP_BATCH = 32;
 
     /**
-     * Local cache. Map with the content of objects, stored as binary data
+     * Objects requested in each page of the listing of the data server
      */
-    protected Map<String, byte[]> cache;
+    protected static int LIST_PAGE = 1000;
+
+    protected static String DEFAULT_COHERENCE = "update";
+
     /**
-     * Locks for resources
+     * Group used to cast invalidations
+     */
+    protected static String INVALIDATION_GROUP = "cache";
+
+    protected static int DEFAULT_BATCH_SIZE = 64;
+
+    protected static int DEFAULT_SHARD_REPLICAS = 0;
+
+    protected static int DEFAULT_HOTKEYS_TOP = 0;
+
+    protected static int DEFAULT_HOTKEYS_KEYS = 16384;
+
+    protected static long DEFAULT_HOTKEYS_PERIOD = 10;
+
+    protected static String DEFAULT_ADMIN_HOTKEYS = "/admin/hotkeys";
+
+    protected static long DEFAULT_BATCH_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Separates the objects of a batch in the resource of the transaction
+     */
+    protected static String BATCH_SEPARATOR = "\n";
+
+    /**
+     * Local cache. Content of objects, stored as binary data
+     */
+    protected ObjectCache cache;
+    /**
+     * Objects known not to exist in the data server
+     */
+    protected NegativeCache missing;
+    /**
+     * Tag of the cached objects that must be revalidated before being read again.
+     * Modified while synchronized on the pending versions
+     */
+    protected Map<String, String> stale;
+    /**
+     * Version of an object pending for commit
+     */
+    protected static class PendingVersion {
+
+        /**
+         * Transaction which created the version
+         */
+        protected String transaction;
+
+        protected byte[] content;
+
+        protected String etag;
+
+        protected PendingVersion(String transaction, byte[] content, String etag) {
+            this.transaction = transaction;
+            this.content = content;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * Consistent hash ring of a set of nodes
+     */
+    protected static class ShardRing {
+
+        protected HashRing hash;
+
+        /**
+         * Nodes of the ring, sorted
+         */
+        protected List<NodeAddress> nodes;
+
+        protected ShardRing(List<NodeAddress> nodes, int virtualNodes) {
+            List<String> locations = new ArrayList<String>();
+            for (NodeAddress node : nodes) {
+                locations.add(node.getLocation());
+            }
+            this.hash = new HashRing(locations, virtualNodes);
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Locks for resources. Serialize the transactions over each resource
      */
     protected EntryLock locks;
     /**
-     * Register the previous state for changes pending for commit
+     * Versions pending for commit. Changes of the versions of an object are done
+     * while synchronized on this map.
+     */
+    protected Map<String, PendingVersion> pendingVersions;
+    /**
+     * Requests in progress to the data server
      */
-    protected Map<String, byte[]> rollBackLog;
+    protected SingleFlight<byte[]> fetches;
     protected TransactionCoordinator coordinator;
     protected LeaderElection election;
     protected String dataServer;
     protected String electionAlgorithm;
     protected String transactionAlgorithm;
+    /**
+     * Indicates modifications are propagated by invalidation instead of transactions
+     */
+    protected boolean invalidate;
+    protected GroupcastProtocol groupcast;
+    protected MembershipAlgorithm membership;
+    /**
+     * Read leases. Null if not used
+     */
+    protected LeaseProtocol leases;
+    /**
+     * Modifications pending to be sent to the data server by the leader. Null if
+     * the data server is updated during the transactions
+     */
+    protected WriteBehindQueue writeBehind;
+    /**
+     * Groups modifications in transactions. Null if each modification is a transaction
+     */
+    protected TransactionBatcher batcher;
+    /**
+     * Number of servers which keep each object. If 0, all the servers keep all the objects
+     */
+    protected int shardReplicas;
+    protected int shardVirtualNodes;
+    /**
+     * Url of the cache server of each node, by location
+     */
+    protected Map<String, String> peers;
+    /**
+     * Ring of the nodes known when it was built. Replaced, never modified, when the
+     * known nodes change, so it is read without locking
+     */
+    protected volatile ShardRing ring;
+    /**
+     * Most accessed objects. Null if not tracked
+     */
+    protected HeavyHitters hotReads;
+    protected HeavyHitters hotWrites;
+    protected HeavyHitters hotTransactions;
+    protected int hotTop;
+    /**
+     * Objects pinned for being the most read. Guarded by itself
+     */
+    protected final Set<String> hotPinned = new HashSet<String>();
+    /**
+     * Timer used to report cache statistics and save snapshots
+     */
+    protected Timer timer;
+    /**
+     * Snapshot of the cache. Null if not used
+     */
+    protected CacheSnapshot snapshot;
+    /**
+     * Indicates the server has been warmed up and accepts requests
+     */
+    protected volatile boolean ready;
 
     public CacheServer() {
-        this.cache = new HashMap<String, byte[]>();
-        this.rollBackLog = new HashMap<String, byte[]>();
+        this.pendingVersions = new HashMap<String, PendingVersion>();
+        this.stale = new ConcurrentHashMap<String, String>();
         this.locks = new EntryLock();
+        this.fetches = new SingleFlight<byte[]>();
+        this.timer = new Timer("cache-timer", true);
 
     }
 
     @Override
     public void start(Configuration configuration) {
-        super.start(configuration);
+
+        long capacity = configuration.getLong("cache.capacity", DEFAULT_CACHE_CAPACITY);
+        String policy = configuration.getString("cache.policy", DEFAULT_CACHE_POLICY);
+        String storage = configuration.getString("cache.storage", DEFAULT_CACHE_STORAGE);
+        SlabAllocator allocator = null;
+        if (storage.equalsIgnoreCase("offheap")) {
+            int slabSize = configuration.getInt("cache.slab", SlabAllocator.DEFAULT_SLAB_SIZE);
+            allocator = new SlabAllocator(capacity, slabSize);
+        }
+        this.cache = new ObjectCache(capacity, ObjectCache.createPolicy(policy, capacity), allocator);
+
+        int negativeCapacity = configuration.getInt("negative.capacity", DEFAULT_NEGATIVE_CAPACITY);
+        long negativeTtl = configuration.getLong("negative.ttl", DEFAULT_NEGATIVE_TTL);
+        this.missing = new NegativeCache(negativeCapacity, negativeTtl * 1000);
+
+        this.hotTop = configuration.getInt("hotkeys.top", DEFAULT_HOTKEYS_TOP);
+        if (hotTop > 0) {
+            int keys = configuration.getInt("hotkeys.keys", DEFAULT_HOTKEYS_KEYS);
+            this.hotReads = new HeavyHitters(hotTop, keys);
+            this.hotWrites = new HeavyHitters(hotTop, keys);
+            this.hotTransactions = new HeavyHitters(hotTop, keys);
+
+            int pin = configuration.getInt("hotkeys.pin", 0);
+            if (pin > 0) {
+                startPinning(pin, configuration.getLong("hotkeys.period", DEFAULT_HOTKEYS_PERIOD) * 1000);
+            }
+        }
+
+        long report = configuration.getLong("cache.report", 0);
+        if (report > 0) {
+            startReporter(report * 1000);
+        }
 
         dataServer = configuration.getString("dataserver");
         electionAlgorithm = configuration.getString("leader");
@@ -83,6 +410,278 @@ public class CacheServer extends WebServer implements ResourceManager, Runnable
         this.coordinator = (TransactionCoordinator) DAT.getAlgorithm(transactionAlgorithm,
                 TransactionCoordinator.class);
         this.coordinator.setResourceManager(this);
+
+        this.invalidate = configuration.getString("coherence", DEFAULT_COHERENCE).equalsIgnoreCase("invalidate");
+        this.shardReplicas = configuration.getInt("shard.replicas", DEFAULT_SHARD_REPLICAS);
+        this.shardVirtualNodes = configuration.getInt("shard.vnodes", HashRing.DEFAULT_VIRTUAL_NODES);
+        this.peers = new HashMap<String, String>();
+        for (String peer : configuration.getStringArray("shard.peers")) {
+            int separator = peer.indexOf('=');
+            if (separator > 0) {
+                peers.put(peer.substring(0, separator).trim(), peer.substring(separator + 1).trim());
+            }
+        }
+        if (invalidate || shardReplicas > 0) {
+            this.membership = (MembershipAlgorithm) DAT.getAlgorithm(configuration.getString("membership"),
+                    MembershipAlgorithm.class);
+        }
+        if (invalidate) {
+            this.groupcast = (GroupcastProtocol) DAT.getAlgorithm(configuration.getString("gcast"),
+                    GroupcastProtocol.class);
+            this.groupcast.registerHandler(INVALIDATION_GROUP, this);
+        }
+        if (configuration.getString("coherence", DEFAULT_COHERENCE).equalsIgnoreCase("lease")) {
+            this.leases = (LeaseProtocol) DAT.getAlgorithm(configuration.getString("lease"), LeaseProtocol.class);
+            this.leases.setListener(new LeaseProtocol.Listener() {
+
+                @Override
+                public void revoked(String key) {
+                    discard(key);
+                }
+            });
+        }
+
+        long batchWindow = configuration.getLong("batch.window", 0);
+        if (batchWindow > 0) {
+            this.batcher = new TransactionBatcher(new TransactionBatcher.Executor() {
+
+                @Override
+                public boolean execute(Map<String, byte[]> batch) {
+                    return executeBatch(batch);
+                }
+            }, batchWindow, configuration.getInt("batch.size", DEFAULT_BATCH_SIZE),
+                    configuration.getLong("batch.bytes", DEFAULT_BATCH_BYTES));
+        }
+
+        String journal = configuration.getString("writebehind.journal");
+        if (journal != null) {
+            try {
+                this.writeBehind = new WriteBehindQueue(new File(journal), new WriteBehindQueue.Writer() {
+
+                    @Override
+                    public void write(String key, byte[] content) throws IOException {
+                        int code = HttpUtils.put(dataServer, key, content);
+                        if (code != HTTP_OK) {
+                            throw new IOException("data server returned " + code + " writing " + key);
+                        }
+                    }
+
+                    @Override
+                    public void delete(String key) throws IOException {
+                        deleteFromDataServer(key);
+                    }
+
+                    @Override
+                    public boolean isActive() {
+                        //a new leader sends the modifications since it was elected
+                        return election.isLeader();
+                    }
+                }, configuration.getInt("writebehind.batch", WriteBehindQueue.DEFAULT_BATCH),
+                        configuration.getLong("writebehind.lag", WriteBehindQueue.DEFAULT_LAG),
+                        configuration.getLong("writebehind.limit", WriteBehindQueue.DEFAULT_LIMIT),
+                        configuration.getBoolean("writebehind.sync", true));
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to open write behind journal " + journal, e);
+            }
+        }
+
+        String snapshotFile = configuration.getString("snapshot.file");
+        if (snapshotFile != null) {
+            this.snapshot = new CacheSnapshot(new File(snapshotFile));
+            loadSnapshot();
+            startSnapshots(configuration.getLong("snapshot.period", 0) * 1000);
+        }
+
+        long warmupBudget = configuration.getLong("warmup.budget", 0);
+        if (warmupBudget > 0) {
+            warmUp(Math.min(warmupBudget, capacity) - cache.getSize(),
+                    configuration.getInt("warmup.threads", DEFAULT_WARMUP_THREADS),
+                    configuration.getInt("warmup.batch", DEFAULT_WARMUP_BATCH));
+        }
+
+        //accept requests only once warmed up
+        super.start(configuration);
+        if (hotReads != null && server != null) {
+            server.createContext(configuration.getString("admin.hotkeys", DEFAULT_ADMIN_HOTKEYS),
+                    new HttpHandler() {
+
+                        @Override
+                        public void handle(HttpExchange exchange) throws IOException {
+                            doHotKeys(exchange);
+                        }
+                    });
+        }
+        ready = true;
+    }
+
+    /**
+     * Lists the most accessed objects, one per line, with the estimated recent reads,
+     * modifications and transactions of each one, separated by tabs
+     */
+    protected void doHotKeys(HttpExchange exchange) throws IOException {
+        int n = hotTop;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("n=")) {
+            try {
+                n = Integer.parseInt(query.substring(2));
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(HTTP_BAD_REQUEST, HTTP_NO_CONTENT);
+                exchange.close();
+                return;
+            }
+        }
+
+        Set<String> keys = new LinkedHashSet<String>();
+        for (HeavyHitters hitters : new HeavyHitters[] { hotReads, hotWrites, hotTransactions }) {
+            for (HeavyHitters.Hitter hitter : hitters.top(n)) {
+                keys.add(hitter.getKey());
+            }
+        }
+
+        StringBuilder listing = new StringBuilder();
+        listing.append("#object\treads\twrites\ttransactions\n");
+        for (String key : keys) {
+            listing.append(key).append('\t').append(hotReads.estimate(key)).append('\t')
+                    .append(hotWrites.estimate(key)).append('\t').append(hotTransactions.estimate(key))
+                    .append('\n');
+        }
+        listing.append("#cache ").append(cache).append(" pinned=").append(getHotPinned().size()).append('\n');
+
+        byte[] content = listing.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(HTTP_OK, content.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content);
+        out.close();
+    }
+
+    /**
+     * Periodically pins the most read objects in the cache and unpins the ones
+     * which are not among them anymore
+     *
+     * @param pin number of objects pinned
+     * @param period milliseconds between updates
+     */
+    protected void startPinning(final int pin, long period) {
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                Set<String> hot = new HashSet<String>();
+                for (HeavyHitters.Hitter hitter : hotReads.top(pin)) {
+                    hot.add(hitter.getKey());
+                }
+
+                synchronized (hotPinned) {
+                    for (String key : hotPinned) {
+                        if (!hot.contains(key)) {
+                            cache.unpin(key);
+                        }
+                    }
+                    for (String key : hot) {
+                        if (!hotPinned.contains(key)) {
+                            cache.pin(key);
+                        }
+                    }
+                    hotPinned.clear();
+                    hotPinned.addAll(hot);
+                }
+            }
+        }, period, period);
+    }
+
+    /**
+     * @return the objects pinned for being the most read
+     */
+    public Set<String> getHotPinned() {
+        synchronized (hotPinned) {
+            return new HashSet<String>(hotPinned);
+        }
+    }
+
+    /**
+     * Loads objects from the data server into the cache, up to a number of bytes.
+     * Objects are selected in the order listed by the data server and loaded in
+     * parallel batches. Returns when all the batches have been loaded.
+     *
+     * @param budget maximum number of bytes to load
+     * @param threads number of batches loaded concurrently
+     * @param batchSize number of objects per batch
+     */
+    protected void warmUp(long budget, int threads, int batchSize) {
+
+        long start = System.currentTimeMillis();
+
+        ExecutorService loaders = Executors.newFixedThreadPool(threads);
+
+        //select the objects that fit in the budget, one page of the listing at a time,
+        //and load them in batches while the next page is listed
+        long bytes = 0;
+        int batches = 0;
+        List<String> batch = new ArrayList<String>();
+        String after = null;
+        try {
+            do {
+                HttpUtils.Listing page = HttpUtils.list(dataServer, after, LIST_PAGE);
+                for (ObjectInfo object : page.getObjects()) {
+                    if (cache.contains(object.getName()) || !isReplica(object.getName())
+                            || (bytes + object.getSize() > budget)) {
+                        continue;
+                    }
+                    bytes += object.getSize();
+                    batch.add(object.getName());
+                    if (batch.size() == batchSize) {
+                        load(loaders, batch);
+                        batches++;
+                        batch = new ArrayList<String>();
+                    }
+                }
+                after = page.getCursor();
+            } while (after != null && bytes < budget);
+        } catch (Exception e) {
+            DAT.getLog().warn("unable to list objects for warm up", e);
+        }
+        if (!batch.isEmpty()) {
+            load(loaders, batch);
+            batches++;
+        }
+
+        loaders.shutdown();
+        try {
+            loaders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            DAT.getLog().warn("interrupted while warming up");
+            Thread.currentThread().interrupt();
+        }
+
+        DAT.getLog().info("Warm up loaded " + bytes + " bytes in " + batches + " batches in "
+                + (System.currentTimeMillis() - start) + " ms. Cache statistics: " + cache);
+    }
+
+    /**
+     * Loads a batch of objects in the cache, in the background
+     */
+    private void load(ExecutorService loaders, final List<String> batch) {
+        loaders.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                for (String object : batch) {
+                    try {
+                        fetch(object);
+                    } catch (HttpException e) {
+                        DAT.getLog().debug("unable to load object " + object + " in warm up", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the server has been warmed up and accepts requests
+     */
+    public boolean isReady() {
+        return ready;
     }
 
     /**
@@ -91,26 +690,353 @@ public class CacheServer extends WebServer implements ResourceManager, Runnable
     @Override
     protected byte[] getContent(String object) throws HttpException {
 
-        byte[] content;
+        ByteBuffer content = getContentBuffer(object);
+        try {
+            return ObjectCache.toBytes(content);
+        } finally {
+            releaseContentBuffer(object, content);
+        }
+    }
 
-        //lock entry
-        locks.reserveEntry(object);
+    /**
+     * Return the committed content from the cache without copying it. If not present,
+     * get it from the data server.
+     */
+    @Override
+    protected ByteBuffer getContentBuffer(String object) throws HttpException {
+        recordRead(object);
+        return readContentBuffer(object);
+    }
+
+    /**
+     * Gets the committed content like {@link #getContentBuffer(String)}, without
+     * counting it as a read of the object
+     */
+    protected ByteBuffer readContentBuffer(String object) throws HttpException {
+
+        //objects of other servers are not cached
+        if (!isReplica(object)) {
+            return ByteBuffer.wrap(fetchFromReplicas(object));
+        }
+
+        if (leases != null) {
+            LeaseProtocol.Status lease = leases.acquire(object);
+            if (lease == LeaseProtocol.Status.UNAVAILABLE) {
+                return ByteBuffer.wrap(fetchUncached(object));
+            }
+            if (lease == LeaseProtocol.Status.CHANGED) {
+                discard(object);
+            }
+        }
+
+        ByteBuffer content = stale.containsKey(object) ? null : cache.acquire(object);
+
+        //if not present or stale, retrieve from data server unless it is known not to exist
+        if (content == null) {
+            if (missing.contains(object)) {
+                throw new HttpException(HTTP_NOT_FOUND);
+            }
+            content = ByteBuffer.wrap(fetch(object));
+        }
+
+        return content;
+    }
+
+    /**
+     * Gets a range of an object from the cache, if cached, or from the data server
+     */
+    @Override
+    protected Part getContentPart(String object, ByteRange range, boolean acceptsGzip) throws HttpException {
+
+        //the data server may not have the modifications pending to be sent
+        if (!isReplica(object) || (writeBehind != null && writeBehind.get(object) != null)) {
+            return super.getContentPart(object, range, acceptsGzip);
+        }
+        recordRead(object);
+
+        boolean cached = true;
+        if (leases != null) {
+            LeaseProtocol.Status lease = leases.acquire(object);
+            if (lease == LeaseProtocol.Status.UNAVAILABLE) {
+                cached = false;
+            } else if (lease == LeaseProtocol.Status.CHANGED) {
+                discard(object);
+            }
+        }
 
-        //get content from cache, if not present, retrieve from data server
+        ByteBuffer content = (!cached || stale.containsKey(object)) ? null : cache.acquire(object);
+        if (content != null) {
+            try {
+                boolean gzip = isGzip(content, acceptsGzip);
+                return Part.slice(getBody(content, gzip), range, gzip);
+            } catch (IOException e) {
+                throw new HttpException(HTTP_SERVER_ERROR, e);
+            } finally {
+                cache.release(content);
+            }
+        }
+
+        if (missing.contains(object)) {
+            throw new HttpException(HTTP_NOT_FOUND);
+        }
         try {
-            content = cache.get(object);
-            if (content == null) {
+            return HttpUtils.getRange(dataServer, object, range, acceptsGzip);
+        } catch (IOException e) {
+            DAT.getLog().warn("unable to get a range of " + object + " from data server", e);
+            throw new HttpException(HTTP_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Answers from the cached version of an object, if cached, otherwise from the
+     * metadata of the data server, without getting the object
+     */
+    @Override
+    protected Head getHead(String object) throws HttpException {
+
+        //the data server may not have the modifications pending to be sent
+        if (!isReplica(object) || (writeBehind != null && writeBehind.get(object) != null)) {
+            ByteBuffer content = readContentBuffer(object);
+            try {
+                return Head.of(content, 0, computeETag(content));
+            } finally {
+                releaseContentBuffer(object, content);
+            }
+        }
 
-                content = HttpUtils.get(dataServer, object);
-                cache.put(object, content);
+        //only cached versions with a valid lease have a tag
+        String etag = getETag(object);
+        ByteBuffer content = (etag == null) ? null : cache.acquire(object);
+        if (content != null) {
+            try {
+                if (!etag.equals(super.getETag(object))) {
+                    etag = computeETag(content);
+                }
+                return Head.of(content, 0, etag);
+            } finally {
+                cache.release(content);
             }
+        }
+
+        if (missing.contains(object)) {
+            throw new HttpException(HTTP_NOT_FOUND);
+        }
+        try {
+            return HttpUtils.head(dataServer, object);
         } catch (IOException e) {
+            DAT.getLog().warn("unable to get the metadata of " + object + " from data server", e);
             throw new HttpException(HTTP_SERVER_ERROR);
-        } finally {
-            //release entry
-            locks.releaseEntry(object);
         }
-        return content;
+    }
+
+    /**
+     * Counts a read of an object for the detection of hot keys
+     */
+    protected void recordRead(String object) {
+        if (hotReads != null) {
+            hotReads.record(object);
+        }
+    }
+
+    /**
+     * Returns the tag of the cached version of an object, computing it if the version
+     * was cached without it (for instance, loaded from a snapshot). Objects of other
+     * servers, stale objects and objects without a valid lease have no known tag.
+     */
+    @Override
+    protected String getETag(String object) {
+
+        if (!isReplica(object)) {
+            return null;
+        }
+
+        if (leases != null) {
+            LeaseProtocol.Status lease = leases.acquire(object);
+            if (lease == LeaseProtocol.Status.UNAVAILABLE) {
+                return null;
+            }
+            if (lease == LeaseProtocol.Status.CHANGED) {
+                discard(object);
+            }
+        }
+
+        String etag = super.getETag(object);
+        if (etag != null || stale.containsKey(object)) {
+            return etag;
+        }
+
+        synchronized (pendingVersions) {
+            etag = super.getETag(object);
+            if (etag == null && !stale.containsKey(object)) {
+                byte[] content = cache.peek(object);
+                if (content != null) {
+                    etag = computeETag(content);
+                    setETag(object, etag);
+                }
+            }
+        }
+        return etag;
+    }
+
+    /**
+     * Puts a version of an object in the cache with its tag. Must be called
+     * synchronized on the pending versions
+     */
+    protected void storeVersion(String object, byte[] content, String etag) {
+        removeETag(object);
+        stale.remove(object);
+        if (cache.put(object, content)) {
+            setETag(object, etag);
+        }
+    }
+
+    /**
+     * Retrieves an object from the data server and puts it in the cache. If the
+     * object is already being retrieved, waits for the request in progress.
+     *
+     * The content is cached only if no transaction modified the object since the
+     * request started or is modifying it now.
+     */
+    protected byte[] fetch(String object) throws HttpException {
+
+        try {
+            return fetches.execute(object, new SingleFlight.Loader<byte[]>() {
+
+                @Override
+                public byte[] load(String object, SingleFlight.Flight<byte[]> flight) throws Exception {
+
+                    //the data server may not have the modifications pending to be sent
+                    byte[] content = (writeBehind == null) ? null : writeBehind.get(object);
+                    String etag = null;
+                    try {
+                        if (content == null) {
+                            //a stale copy is kept if the data server still has the same version
+                            String known = stale.get(object);
+                            HttpUtils.Stored stored = HttpUtils.getStoredVersion(dataServer, object, known);
+                            if (!stored.isModified()) {
+                                synchronized (pendingVersions) {
+                                    content = cache.peek(object);
+                                    if (content != null && !flight.isStale() && !pendingVersions.containsKey(object)
+                                            && stale.remove(object) != null) {
+                                        setETag(object, stored.getETag());
+                                        return content;
+                                    }
+                                }
+                                stored = HttpUtils.getStoredVersion(dataServer, object, null);
+                            }
+                            content = stored.getContent();
+                            etag = stored.getETag();
+                        }
+                    } catch (HttpException e) {
+                        if (e.getCode() == HTTP_NOT_FOUND) {
+                            synchronized (pendingVersions) {
+                                if (!flight.isStale() && !pendingVersions.containsKey(object)) {
+                                    missing.add(object);
+                                }
+                            }
+                        }
+                        throw e;
+                    }
+
+                    if (etag == null) {
+                        etag = computeETag(content);
+                    }
+
+                    synchronized (pendingVersions) {
+                        if (!flight.isStale() && !pendingVersions.containsKey(object)) {
+                            storeVersion(object, content, etag);
+                        }
+                    }
+
+                    return content;
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HttpException) {
+                throw (HttpException) e.getCause();
+            }
+            throw new HttpException(HTTP_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Retrieves an object from the data server without caching it
+     */
+    protected byte[] fetchUncached(String object) throws HttpException {
+        try {
+            return HttpUtils.getStored(dataServer, object);
+        } catch (IOException e) {
+            DAT.getLog().warn("unable to get " + object + " from data server", e);
+            throw new HttpException(HTTP_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Retrieves an object from the servers responsible for it, in order. If none
+     * answers, retrieves it from the data server.
+     */
+    protected byte[] fetchFromReplicas(String object) throws HttpException {
+        for (NodeAddress replica : getReplicas(object)) {
+            String url = peers.get(replica.getLocation());
+            if (url == null) {
+                continue;
+            }
+            try {
+                return HttpUtils.getStored(url, object);
+            } catch (HttpException e) {
+                if (e.getCode() == HTTP_NOT_FOUND) {
+                    throw e;
+                }
+                DAT.getLog().debug("unable to get " + object + " from " + url + ": " + e.getCode());
+            } catch (IOException e) {
+                DAT.getLog().debug("unable to get " + object + " from " + url, e);
+            }
+        }
+
+        return fetchUncached(object);
+    }
+
+    /**
+     * Returns the nodes responsible for an object, starting with its owner. The ring
+     * is rebuilt when the known nodes change.
+     */
+    protected List<NodeAddress> getReplicas(String object) {
+        List<NodeAddress> known = new ArrayList<NodeAddress>(membership.getKnownNodes());
+        NodeAddress local = DAT.getLocalAddress();
+        if (!known.contains(local)) {
+            known.add(local);
+        }
+        Collections.sort(known);
+
+        //concurrent readers may build the same ring, any of them is valid
+        ShardRing current = ring;
+        if (current == null || !known.equals(current.nodes)) {
+            current = new ShardRing(known, shardVirtualNodes);
+            ring = current;
+        }
+
+        List<NodeAddress> replicas = new ArrayList<NodeAddress>();
+        for (String location : current.hash.getNodes(object, shardReplicas)) {
+            for (NodeAddress node : current.nodes) {
+                if (node.getLocation().equals(location)) {
+                    replicas.add(node);
+                    break;
+                }
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * @return true if this server keeps the object
+     */
+    protected boolean isReplica(String object) {
+        return shardReplicas <= 0 || getReplicas(object).contains(DAT.getLocalAddress());
+    }
+
+    @Override
+    protected void releaseContentBuffer(String object, ByteBuffer content) {
+        cache.release(content);
     }
 
     @Override
@@ -124,43 +1050,208 @@ public class CacheServer extends WebServer implements ResourceManager, Runnable
 
     @Override
     protected void putContent(String object, byte[] content) throws HttpException {
+
+        //the separator marks the objects of a batch
+        if (object.contains(BATCH_SEPARATOR)) {
+            throw new HttpException(HTTP_BAD_REQUEST);
+        }
+
+        if (hotWrites != null) {
+            hotWrites.record(object);
+        }
+
+        if (invalidate) {
+            putAndInvalidate(object, content);
+            return;
+        }
+
+        if (leases != null) {
+            putWithLease(object, content);
+            return;
+        }
+
         //request the execution of the transaction
-        boolean executed = coordinator.executeTransaction(object, "PUT", content);
+        boolean executed;
+        if (batcher != null) {
+            executed = batcher.execute(object, content);
+        } else {
+            executed = coordinator.executeTransaction(object, "PUT", content);
+        }
 
         if (!executed) {
             throw new HttpException(HTTP_SERVER_ERROR);
         }
     }
 
+    /**
+     * Updates the object in the data server and invalidates it in all the servers.
+     * The local copy is discarded, not replaced, so a concurrent modification from
+     * another server can't be overwritten by this one.
+     */
+    protected void putAndInvalidate(String object, byte[] content) throws HttpException {
+        try {
+            int code = HttpUtils.put(dataServer, object, content);
+            if (code != HTTP_OK) {
+                throw new HttpException(code);
+            }
+        } catch (IOException e) {
+            DAT.getLog().warn("unable to update resource " + object, e);
+            throw new HttpException(HTTP_SERVER_ERROR);
+        }
+
+        discard(object);
+
+        InvalidationMessage message = new InvalidationMessage();
+        message.setString("object", object);
+        List<NodeAddress> targets = (shardReplicas > 0) ? getReplicas(object) : membership.getKnownNodes();
+        groupcast.cast(INVALIDATION_GROUP, message, targets);
+    }
+
+    /**
+     * Updates the object in the data server once the leader has revoked its leases.
+     * Modifications of an object from this server are serialized, as the leader serves
+     * one modification of each object per node at a time. If the permission expires
+     * before the update ends, the update fails once the leases granted meanwhile are
+     * revoked again.
+     */
+    protected void putWithLease(String object, byte[] content) throws HttpException {
+        locks.reserveEntry(object);
+        try {
+            if (!leases.beginWrite(object)) {
+                throw new HttpException(HTTP_SERVER_ERROR);
+            }
+            boolean expired;
+            try {
+                int code = HttpUtils.put(dataServer, object, content);
+                if (code != HTTP_OK) {
+                    throw new HttpException(code);
+                }
+            } catch (IOException e) {
+                DAT.getLog().warn("unable to update resource " + object, e);
+                throw new HttpException(HTTP_SERVER_ERROR);
+            } finally {
+                discard(object);
+                expired = !leases.endWrite(object);
+            }
+
+            if (expired) {
+                //leases granted meanwhile may be over the previous content, revoke them
+                DAT.getLog().warn("permission to update resource " + object + " expired while updating it");
+                if (leases.beginWrite(object)) {
+                    leases.endWrite(object);
+                }
+                throw new HttpException(HTTP_SERVER_ERROR);
+            }
+        } finally {
+            locks.releaseEntry(object);
+        }
+    }
+
+    /**
+     * Handles the invalidation of an object modified by another server
+     */
+    @Override
+    public void handleCast(String group, Message message) {
+        String object = message.getString("object");
+        if (object != null) {
+            discard(object);
+        }
+    }
+
+    /**
+     * Discards the local copy of an object. If its tag is known, the copy is kept as
+     * stale, to be revalidated. Content being retrieved from the data server is
+     * outdated and won't be cached
+     */
+    protected void discard(String object) {
+        synchronized (pendingVersions) {
+            String etag = etags.remove(object);
+            if (etag == null) {
+                etag = stale.get(object);
+            }
+            if (etag != null && cache.contains(object)) {
+                stale.put(object, etag);
+            } else {
+                cache.remove(object);
+                stale.remove(object);
+            }
+            fetches.invalidate(object);
+            missing.remove(object);
+        }
+    }
+
+    /**
+     * Executes a batch of modifications in a transaction. A batch of one object
+     * is executed as a single modification
+     */
+    protected boolean executeBatch(Map<String, byte[]> batch) {
+        if (batch.size() == 1) {
+            Map.Entry<String, byte[]> modification = batch.entrySet().iterator().next();
+            return coordinator.executeTransaction(modification.getKey(), "PUT", modification.getValue());
+        }
+
+        StringBuilder resource = new StringBuilder();
+        for (String object : batch.keySet()) {
+            resource.append(BATCH_SEPARATOR).append(object);
+        }
+
+        return coordinator.executeTransaction(resource.toString(), "BATCH", new HashMap<String, byte[]>(batch));
+    }
+
+    /**
+     * Returns the objects of a resource, in lock order. The resource is a single
+     * object, or the objects of a batch, each one preceded by the separator. Names
+     * of objects can't contain the separator, so a single object is never split.
+     */
+    protected static String[] getObjects(String resource) {
+        if (!resource.startsWith(BATCH_SEPARATOR)) {
+            return new String[] { resource };
+        }
+        String[] objects = resource.substring(BATCH_SEPARATOR.length()).split(BATCH_SEPARATOR);
+        Arrays.sort(objects);
+        return objects;
+    }
+
     //@Override
+    /**
+     * Locks the entries for the transaction. Waits for any other transaction
+     * over the resources to end. Local reads are not affected.
+     */
     public boolean lock(String resource, String transaction) {
-        //get the entry. Prevent further local access
-        // - locks.reserveEntry(resource);
-        // + locks.reserveEntry(resource, transaction);
-        locks.reserveEntry(resource, transaction);
+        for (String object : getObjects(resource)) {
+            if (hotTransactions != null) {
+                hotTransactions.record(object);
+            }
+            locks.reserveEntry(object, transaction);
+        }
 
         return true;
     }
 
     //@Override
+    /**
+     * Discards the versions pending for commit and releases the entries.
+     */
     public void abort(String resource, String transaction) {
-        byte[] content = rollBackLog.remove(resource);
-
-        if (content == null) {
-            DAT.getLog().debug("Previous state for resource " + resource + " not found in RollBack");
-            return;
+        for (String object : getObjects(resource)) {
+            abortObject(object, transaction);
         }
+    }
 
-        cache.put(resource, content);
+    /**
+     * Discards the version pending for commit. The data server is updated only
+     * on commit, so it still has the committed version.
+     */
+    protected void abortObject(String resource, String transaction) {
 
-        //update in data server
-        if (election.isLeader()) {
-            try {
-                HttpUtils.put(dataServer, resource, content);
-            } catch (IOException e) {
-                DAT.getLog().warn("unable to restore resource state in abort: " + resource, e);
-                return;
-            }
+        PendingVersion version;
+        synchronized (pendingVersions) {
+            version = removePendingVersion(resource, transaction);
+            fetches.invalidate(resource);
+        }
+
+        if (version == null) {
+            DAT.getLog().debug("Pending version for resource " + resource + " not found");
         }
 
         unlock(resource, transaction);
@@ -168,13 +1259,38 @@ public class CacheServer extends WebServer implements ResourceManager, Runnable
 
     //@Override
     /**
-     * Updates the content of an entry in the local cache. If the server is the leader
-     * also updates the entry in the data server
+     * Publishes the versions pending for commit and releases the entries.
      */
     public void commit(String resource, String transaction) {
+        for (String object : getObjects(resource)) {
+            commitObject(object, transaction);
+        }
+    }
+
+    /**
+     * Publishes the version pending for commit as the committed version. If the
+     * server is the leader also updates the object in the data server, before
+     * releasing the entry so the updates of an object are sent in order.
+     */
+    protected void commitObject(String resource, String transaction) {
 
-        //delete pending operation
-        rollBackLog.remove(resource);
+        PendingVersion version;
+        synchronized (pendingVersions) {
+            version = removePendingVersion(resource, transaction);
+            if (version != null && isReplica(resource)) {
+                storeVersion(resource, version.content, version.etag);
+            }
+            fetches.invalidate(resource);
+        }
+
+        if (version != null && election.isLeader()) {
+            try {
+                updateDataServer(resource, version.content);
+                DAT.getLog().info("PUT: update server cache");
+            } catch (IOException e) {
+                DAT.getLog().warn("unable to update resource " + resource, e);
+            }
+        }
 
         //release entry
         unlock(resource, transaction);
@@ -182,44 +1298,94 @@ public class CacheServer extends WebServer implements ResourceManager, Runnable
 
     //@Override
     /**
-     * Process a modification request coming from the coordinator.
+     * Process a modification request coming from the coordinator. The new content
+     * of each object is kept as the pending version of its entry, written to the
+     * data server by the leader when the transaction commits.
      *
-     * Assumes the entry was locked in the lock method to prevent local access.
+     * Assumes the entries were locked in the lock method to prevent other transactions.
      */
+    @SuppressWarnings("unchecked")
     public boolean apply(String resource, String transaction, String operation, Object data) {
 
-        //the only supported operation is update
-        if (!operation.equals("PUT")) {
-            return false;
+        //the only supported operations are update and batches of updates
+        if (operation.equals("PUT")) {
+            return applyPut(resource, transaction, (byte[]) data);
         }
 
-        //save current state
-        rollBackLog.put(resource, cache.get(resource));
+        if (operation.equals("BATCH")) {
+            Map<String, byte[]> batch = (Map<String, byte[]>) data;
+            for (Map.Entry<String, byte[]> modification : batch.entrySet()) {
+                if (!applyPut(modification.getKey(), transaction, modification.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-        byte[] content = (byte[]) data;
+        return false;
+    }
 
-        //update local cache
-        cache.put(resource, content);
-        DAT.getLog().info("PUT: update local cache");
+    /**
+     * Keeps the new content as the pending version of the entry
+     */
+    protected boolean applyPut(String resource, String transaction, byte[] content) {
 
-        //update in data server
-        if (election.isLeader()) {
-            try {
-                HttpUtils.put(dataServer, resource, content);
-                DAT.getLog().info("PUT: update server cache");
-            } catch (IOException e) {
-                DAT.getLog().warn("unable to update resource " + resource, e);
-                return false;
-            }
+        String etag = computeETag(content);
+
+        //Content being retrieved from the data server is outdated
+        synchronized (pendingVersions) {
+            pendingVersions.put(resource, new PendingVersion(transaction, content, etag));
+            fetches.invalidate(resource);
+            missing.remove(resource);
         }
+        DAT.getLog().info("PUT: pending version in local cache");
 
         return true;
     }
 
+    /**
+     * Deletes an object from the data server. Objects not found are ignored
+     */
+    protected void deleteFromDataServer(String resource) throws IOException {
+        try {
+            HttpUtils.delete(dataServer, resource);
+        } catch (HttpException e) {
+            if (e.getCode() != HTTP_NOT_FOUND) {
+                throw new IOException("data server returned " + e.getCode() + " deleting " + resource);
+            }
+        }
+    }
+
+    /**
+     * Updates an object in the data server, or queues the update if write
+     * behind is used
+     */
+    protected void updateDataServer(String resource, byte[] content) throws IOException {
+        if (writeBehind != null) {
+            writeBehind.put(resource, content);
+        } else {
+            HttpUtils.put(dataServer, resource, content);
+        }
+    }
+
+    /**
+     * Removes the version of a resource pending for commit, if it belongs to the given
+     * transaction. Must be called while synchronized on the pending versions
+     *
+     * @return the pending version, or null if there is none for the transaction
+     */
+    protected PendingVersion removePendingVersion(String resource, String transaction) {
+        PendingVersion version = pendingVersions.get(resource);
+        if (version == null || !version.transaction.equals(transaction)) {
+            return null;
+        }
+        return pendingVersions.remove(resource);
+    }
+
     /**
      *
-     * Releases a resource locked for a given transaction. If the transaction requesting
-     * the unlock is not the transaction currently locking the resource, the request is
+     * Releases an object locked for a given transaction. If the transaction requesting
+     * the unlock is not the transaction currently locking the object, the request is
      * ignored.
      *
      * Assumes that the cache entry has been locked by the {@link #lock(String, String)} method
@@ -230,6 +1396,128 @@ public class CacheServer extends WebServer implements ResourceManager, Runnable
         locks.releaseEntry(resource, transaction);
     }
 
+    /**
+     * Starts logging the cache statistics periodically
+     *
+     * @param period milliseconds between reports
+     */
+    protected void startReporter(long period) {
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                DAT.getLog().info("Cache statistics: " + cache + " missing=" + missing.size()
+                        + " missingHits=" + missing.getHits()
+                        + ((writeBehind == null) ? "" : " writeBehind: " + writeBehind)
+                        + ((batcher == null) ? "" : " batcher: " + batcher));
+            }
+        }, period, period);
+    }
+
+    /**
+     * Saves snapshots of the cache periodically and when the server stops
+     *
+     * @param period milliseconds between snapshots. If 0, only saves on stop
+     */
+    protected void startSnapshots(long period) {
+        if (period > 0) {
+            timer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    saveSnapshot();
+                }
+            }, period, period);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread("cache-snapshot") {
+
+            @Override
+            public void run() {
+                saveSnapshot();
+            }
+        });
+    }
+
+    /**
+     * Returns a validator with the current hash of the objects in the data server, the
+     * hash of their tags. The listing of the data server is read one page at a time, as
+     * the objects are queried in order.
+     */
+    protected CacheSnapshot.Validator getValidator() {
+
+        return new CacheSnapshot.Validator() {
+
+            private Iterator<ObjectInfo> objects = Collections.<ObjectInfo>emptyIterator();
+
+            private ObjectInfo current;
+
+            private String cursor;
+
+            private boolean first = true;
+
+            @Override
+            public String hash(String key) throws IOException {
+                while (current == null || current.getName().compareTo(key) < 0) {
+                    if (!objects.hasNext()) {
+                        if (!first && cursor == null) {
+                            return null;
+                        }
+                        try {
+                            HttpUtils.Listing page = HttpUtils.list(dataServer, cursor, LIST_PAGE);
+                            objects = page.getObjects().iterator();
+                            cursor = page.getCursor();
+                            first = false;
+                        } catch (HttpException e) {
+                            throw new IOException("unable to list objects: " + e.getMessage(), e);
+                        }
+                        if (!objects.hasNext()) {
+                            return null;
+                        }
+                    }
+                    current = objects.next();
+                }
+                return current.getName().equals(key) ? current.getHash() : null;
+            }
+        };
+    }
+
+    /**
+     * Saves the content of the cache. Objects with a pending version are not saved
+     */
+    protected void saveSnapshot() {
+        //snapshots are taken one at a time, without blocking the requests
+        synchronized (snapshot) {
+            try {
+                Set<String> excluded;
+                synchronized (pendingVersions) {
+                    excluded = new HashSet<String>(pendingVersions.keySet());
+                }
+
+                int saved = snapshot.save(cache, getValidator(), excluded);
+                DAT.getLog().info("Snapshot saved with " + saved + " objects");
+            } catch (Exception e) {
+                DAT.getLog().warn("unable to save snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Restores the objects of the snapshot not modified since it was taken
+     */
+    protected void loadSnapshot() {
+        try {
+            int restored = snapshot.load(cache, getValidator());
+            DAT.getLog().info("Snapshot restored with " + restored + " objects");
+        } catch (Exception e) {
+            DAT.getLog().warn("unable to restore snapshot", e);
+        }
+    }
+
+    public ObjectCache getCache() {
+        return cache;
+    }
+
     @Override
     public void run() {
         Configuration param = dat.core.DAT.getAppParameters();
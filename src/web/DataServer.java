@@ -2,19 +2,120 @@ package web;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.configuration.Configuration;
 
+import utils.ByteRange;
+import utils.CompressionUtils;
 import utils.FileUtils;
+import utils.HashUtils;
+import utils.ObjectInfo;
+import utils.HttpUtils.Head;
 import utils.HttpUtils.HttpException;
+import utils.HttpUtils.Part;
+import web.cache.MappedRegionCache;
+import web.storage.DedupStorage;
+import web.storage.FileStorage;
+import web.storage.GroupCommit;
+import web.storage.LogStorage;
+import web.storage.Region;
+import web.storage.StorageBackend;
 
+import com.sun.net.httpserver.HttpExchange;
+
+import dat.core.DAT;
+
+/**
+ * Stores objects in a directory.
+ * 
+ * The "storage" option selects how: "file" (default) stores each object in a file, 
+ * named as the object, in "file.shards" levels of subdirectories (0 by default). With 
+ * "file.migrate", the files of another layout are moved to it at startup (see 
+ * {@link FileStorage}). "log" appends the objects to a log of segments of up to 
+ * "log.segment" bytes, which are compacted every "log.compaction.period" seconds when
+ * their fraction of replaced or deleted content reaches "log.compaction.ratio" 
+ * (see {@link LogStorage}). "dedup" stores the content of objects once, by its hash,
+ * so objects with the same content share it (see {@link DedupStorage}).
+ * 
+ * Writes replace the previous content of an object atomically: a failure while writing
+ * leaves the previous content. If "sync" is true, each write or deletion is on disk 
+ * before it is answered. Concurrent writes are flushed together, waiting up to 
+ * "sync.latency" milliseconds for "sync.batch" writes (see {@link GroupCommit}).
+ * 
+ * Besides the operations over objects, a GET request with the "list" query
+ * (for example, http://localhost:9090/?list) returns the objects in the store, one
+ * per line, with their name, size and time of last modification separated by tabs,
+ * ordered by name. With a "limit" parameter (?list&limit=100), only that number of
+ * objects is returned, up to 1000, and the "X-Next-Cursor" header of the response is set if there
+ * may be more: its value is the "after" parameter of the request for the next page 
+ * (?list&limit=100&after=cursor). The objects are read from the storage in pages, so
+ * listing them takes the same memory however many there are.
+ * 
+ * HEAD requests are answered from the metadata of the storage, reading only the 
+ * header of the stored content. The tag of objects not written since the server 
+ * started may be unknown.
+ * 
+ * The entity tag of each object is computed when it is stored, or when first requested
+ * after the server starts. Modifications of an object are serialized, so its tag is 
+ * always set after the file is written.
+ * 
+ * The content of the files is sent and received as a stream.
+ * 
+ * If "mmap.capacity" is set, the files read frequently are mapped in memory, up to that
+ * number of bytes, and sent from the mapped regions. Files larger than "mmap.max" bytes
+ * are not mapped. The eviction policy of the regions ("mmap.policy") decides which files
+ * remain mapped. A file is not modified while its mapped region is being sent.
+ * 
+ */
 public class DataServer extends WebServer {
 
+	protected static String LIST_QUERY = "list";
+	
+	/**
+	 * Objects read from the storage at once when listing them
+	 */
+	protected static int LIST_PAGE = 1000;
+	
+	protected static String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+	
+	protected static String DEFAULT_MMAP_POLICY = "tinylfu";
+	
+	protected static long DEFAULT_MMAP_MAX = 256 * 1024 * 1024;
+	
+	protected static String DEFAULT_STORAGE = "file";
+
 
 	/**
 	 * Path to the Object directory
 	 */
 	private String path;
+	
+	/**
+	 * Stores the content of the objects
+	 */
+	protected StorageBackend storage;
+	
+	/**
+	 * Serializes the modifications of each object
+	 */
+	protected EntryLock locks = new EntryLock();
+	
+	/**
+	 * Files mapped in memory. Null if files are not mapped
+	 */
+	protected MappedRegionCache regions;
 
 
 	public DataServer() {
@@ -23,12 +124,12 @@ public class DataServer extends WebServer {
 
 	public DataServer(String address, String urlPath, int port, int range,String path) {
 		super(address, urlPath, port, range);
-		this.path = path;
+		setPath(path);
 	}
 
 	public DataServer(String path){
 		super();
-		this.path = path;
+		setPath(path);
 	}
 
 
@@ -39,27 +140,43 @@ public class DataServer extends WebServer {
 		return path;
 	}
 
+	/**
+	 * Sets the directory of the objects, stored each in a file
+	 */
 	public void setPath(String path) {
 		this.path = path;
 		try {
-			FileUtils.createDirectory(path);
+			this.storage = new FileStorage(path);
 		} catch (IOException e) {
 			throw new IllegalArgumentException("Invalid path " + path);
 		}
 	}
 
+	public StorageBackend getStorage() {
+		return storage;
+	}
+
+	public void setStorage(StorageBackend storage) {
+		this.storage = storage;
+	}
+
 
 
 	@Override
 	protected void delete(String object) throws HttpException{
 	
+		locks.reserveEntry(object);
 		try {
-			FileUtils.deleteFile(path,object);
+			invalidateRegion(object);
+			storage.delete(object);
+			removeETag(object);
 			
 		} catch (FileNotFoundException e) {
-			new HttpException(HTTP_NOT_FOUND);
+			throw new HttpException(HTTP_NOT_FOUND);
 		} catch (IOException e) {
-			new HttpException(HTTP_SERVER_ERROR);
+			throw new HttpException(HTTP_SERVER_ERROR);
+		} finally {
+			locks.releaseEntry(object);
 		}
 	}
 
@@ -68,33 +185,424 @@ public class DataServer extends WebServer {
 		
 		try {
 			
-			byte[] content = FileUtils.readBytesFromFile(path,object);			
-			return content;
+			return storage.read(object);
+			
+		} catch (FileNotFoundException e) {
+			throw new HttpException(HTTP_NOT_FOUND);
+		} catch (IOException e) {
+			throw new HttpException(HTTP_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Files are not sent as a stream if mapped in memory
+	 */
+	@Override
+	protected StoredChannel openContent(String object) throws HttpException {
+		if(regions != null){
+			return null;
+		}
+		try {
+			return openRegion(object);
+		} catch (FileNotFoundException e) {
+			throw new HttpException(HTTP_NOT_FOUND);
+		} catch (IOException e) {
+			throw new HttpException(HTTP_SERVER_ERROR);
+		}
+	}
+
+
+	/**
+	 * Opens the file with the content of an object. The content may be moved by the
+	 * storage once located, so it is located again if its file no longer exists.
+	 * 
+	 * @return the file, to be read with positional reads
+	 * @throws FileNotFoundException if the object is not stored
+	 */
+	protected StoredChannel openRegion(String object) throws IOException {
+		Region region;
+		FileChannel channel;
+		try {
+			region = storage.locate(object);
+			channel = region.open();
+		} catch (FileNotFoundException e) {
+			region = storage.locate(object);
+			channel = region.open();
+		}
+		return new StoredChannel(channel, region.getOffset(), region.getLength());
+	}
+
+
+	/**
+	 * Writes the content to the storage as it is read. The tag is the hash computed by
+	 * the storage while writing it, if any, otherwise it is computed when requested.
+	 */
+	@Override
+	protected void putContentStream(String object, InputStream content) throws HttpException, IOException {
+
+		locks.reserveEntry(object);
+		try {
+			removeETag(object);
+			invalidateRegion(object);
+			storage.write(object, content);
+			String hash = getStoredHash(object);
+			if(hash != null){
+				setETag(object, toETag(hash));
+			}
+		} catch (FileNotFoundException e) {
+			throw new HttpException(HTTP_NOT_FOUND);
+		} catch (IOException e) {
+			throw new HttpException(HTTP_SERVER_ERROR);
+		} finally {
+			locks.releaseEntry(object);
+		}
+	}
+
+
+	/**
+	 * Reads only the range requested from the storage, unless the content is compressed
+	 * and the client doesn't accept it compressed, as it must be decoded as a whole.
+	 */
+	@Override
+	protected Part getContentPart(String object, ByteRange range, boolean acceptsGzip) throws HttpException {
+		
+		//the range is copied from the mapped region
+		if(regions != null){
+			return super.getContentPart(object, range, acceptsGzip);
+		}
+		
+		StoredChannel stored;
+		try {
+			stored = openRegion(object);
+		} catch (FileNotFoundException e) {
+			throw new HttpException(HTTP_NOT_FOUND);
+		} catch (IOException e) {
+			throw new HttpException(HTTP_SERVER_ERROR);
+		}
+		FileChannel channel = (FileChannel)stored.channel;
+		boolean sent = false;
+		
+		try {
+			ByteBuffer header = FileUtils.readFromChannel(channel, stored.offset, 
+					(int)Math.min(stored.size, CompressionUtils.HEADER_SIZE));
+			boolean gzip = isGzip(header, acceptsGzip);
+			if(CompressionUtils.method(header) == CompressionUtils.GZIP && !gzip){
+				return super.getContentPart(object, range, acceptsGzip);
+			}
+			
+			//the header of encoded content is not sent
+			long offset = CompressionUtils.isEncoded(header) ? CompressionUtils.HEADER_SIZE : 0;
+			long length = stored.size - offset;
+			if(!range.isSatisfiable(length)){
+				return new Part(null, -1, length, gzip);
+			}
+			
+			//the part is transferred from the file when sent, which closes it
+			sent = true;
+			return new Part(channel, stored.offset + offset + range.getFirst(length), range.getLength(length),
+					range.getFirst(length), length, gzip);
 			
+		} catch (IOException e) {
+			throw new HttpException(HTTP_SERVER_ERROR);
+		} finally {
+			if(!sent){
+				try {
+					channel.close();
+				} catch (IOException e) {
+					//nothing to do
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the mapped region of the object, if objects are mapped. The object is not 
+	 * modified until the region is released
+	 */
+	@Override
+	protected ByteBuffer getContentBuffer(String object) throws HttpException {
+		
+		if(regions == null){
+			return super.getContentBuffer(object);
+		}
+		
+		locks.reserveShared(object);
+		try {
+			ByteBuffer region;
+			try {
+				region = regions.acquire(object, storage.locate(object));
+			} catch (FileNotFoundException e) {
+				//the content was moved by the storage
+				region = regions.acquire(object, storage.locate(object));
+			}
+			if(region != null){
+				return region;
+			}
+			return super.getContentBuffer(object);
 		} catch (FileNotFoundException e) {
+			locks.releaseShared(object);
 			throw new HttpException(HTTP_NOT_FOUND);
 		} catch (IOException e) {
+			locks.releaseShared(object);
 			throw new HttpException(HTTP_SERVER_ERROR);
+		} catch (HttpException e) {
+			locks.releaseShared(object);
+			throw e;
 		}
 	}
 
+
+	@Override
+	protected void releaseContentBuffer(String object, ByteBuffer content) {
+		if(regions != null){
+			locks.releaseShared(object);
+		}
+	}
+
+
+	/**
+	 * Discards the mapped region of an object, if any. Must be called with the entry 
+	 * of the object reserved in exclusive mode.
+	 */
+	protected void invalidateRegion(String object) {
+		if(regions != null){
+			regions.invalidate(object);
+		}
+	}
+
+
 	@Override
 	protected void putContent(String object, byte[] content) throws HttpException{
 		
+		locks.reserveEntry(object);
+		try {
+			removeETag(object);
+			invalidateRegion(object);
+			storage.write(object, content);
+			String hash = getStoredHash(object);
+			setETag(object, (hash != null) ? toETag(hash) : computeETag(content));
+		} catch (FileNotFoundException e) {
+			throw new HttpException(HTTP_NOT_FOUND);
+		} catch (IOException e) {
+			throw new HttpException(HTTP_SERVER_ERROR);
+		} finally {
+			locks.releaseEntry(object);
+		}
+	}
+
+
+	/**
+	 * Takes the size, time of modification and hash from the storage. The tag is unknown
+	 * if the storage has no hash and the object wasn't modified since the server started.
+	 */
+	@Override
+	protected Head getHead(String object) throws HttpException {
+		
+		locks.reserveShared(object);
 		try {
-			FileUtils.writeBytesToFile(path,object, content);
+			ObjectInfo info = storage.stat(object);
+			if(info == null){
+				throw new HttpException(HTTP_NOT_FOUND);
+			}
+			ByteBuffer header = storage.read(object, 0, (int)Math.min(info.getSize(), CompressionUtils.HEADER_SIZE));
+			String etag = super.getETag(object);
+			if(etag == null && info.getHash() != null){
+				etag = toETag(info.getHash());
+			}
+			return new Head(header, info.getSize(), info.getLastModified(), etag);
 		} catch (FileNotFoundException e) {
 			throw new HttpException(HTTP_NOT_FOUND);
 		} catch (IOException e) {
-			new HttpException(HTTP_SERVER_ERROR);
+			throw new HttpException(HTTP_SERVER_ERROR);
+		} finally {
+			locks.releaseShared(object);
+		}
+	}
+
+
+	/**
+	 * @return the hash of the content of an object kept by the storage, or null if unknown
+	 */
+	protected String getStoredHash(String object) throws IOException {
+		ObjectInfo info = storage.stat(object);
+		return (info == null) ? null : info.getHash();
+	}
+
+
+	/**
+	 * @return the metadata of an object with the hash of its tag, if the storage doesn't
+	 *         keep it and the tag is known. The hash is not computed.
+	 */
+	protected ObjectInfo withHash(ObjectInfo info) {
+		if(info.getHash() != null){
+			return info;
+		}
+		String etag = super.getETag(info.getName());
+		return (etag == null) ? info
+				: new ObjectInfo(info.getName(), info.getSize(), info.getLastModified(), toHash(etag));
+	}
+
+
+	/**
+	 * Returns the tag of an object, computing it from the stored content if the object
+	 * wasn't modified since the server started
+	 */
+	@Override
+	protected String getETag(String object) {
+		
+		String etag = super.getETag(object);
+		if(etag != null){
+			return etag;
+		}
+		
+		locks.reserveShared(object);
+		try {
+			etag = super.getETag(object);
+			if(etag == null && getStoredHash(object) != null){
+				etag = toETag(getStoredHash(object));
+				setETag(object, etag);
+			}
+			else if(etag == null){
+				StoredChannel stored = openRegion(object);
+				try {
+					etag = toETag(HashUtils.sha256(Channels.newChannel(
+							FileUtils.openStream((FileChannel)stored.channel, stored.offset, stored.size))));
+				} finally {
+					stored.channel.close();
+				}
+				setETag(object, etag);
+			}
+			return etag;
+		} catch (IOException e) {
+			//the object doesn't exist or can't be read, let the request fail when getting it
+			return null;
+		} finally {
+			locks.releaseShared(object);
+		}
+	}
+
+
+	@Override
+	protected void doGET(HttpExchange exchange) throws IOException, HttpException {
+		
+		String query = exchange.getRequestURI().getRawQuery();
+		
+		if(query != null && (query.equals(LIST_QUERY) || query.startsWith(LIST_QUERY + "&"))){
+			doLIST(exchange);
+		}
+		else{
+			super.doGET(exchange);
+		}
+	}
+	
+	
+	/**
+	 * Sends the list of objects with their metadata, or a page of it
+	 */
+	protected void doLIST(HttpExchange exchange) throws IOException, HttpException {
+		
+		Map<String,String> parameters = getParameters(exchange.getRequestURI().getRawQuery());
+		String after = parameters.get("after");
+		int limit = Integer.MAX_VALUE;
+		if(parameters.containsKey("limit")){
+			try {
+				limit = Integer.parseInt(parameters.get("limit"));
+			} catch (NumberFormatException e) {
+				throw new HttpException(HTTP_BAD_REQUEST);
+			}
+			if(limit <= 0){
+				throw new HttpException(HTTP_BAD_REQUEST);
+			}
+			limit = Math.min(limit, LIST_PAGE);
+		}
+		
+		List<ObjectInfo> page = storage.list(after, Math.min(limit, LIST_PAGE));
+		
+		exchange.getResponseHeaders().set("Content-type", "text/plain; charset=UTF-8");
+		if(page.size() == limit){
+			String cursor = page.get(page.size() - 1).getName();
+			exchange.getResponseHeaders().set(NEXT_CURSOR_HEADER, URLEncoder.encode(cursor, "UTF-8"));
 		}
+		//length is unknown, use chunked encoding
+		exchange.sendResponseHeaders(HTTP_OK, 0);
+		
+		OutputStream out = exchange.getResponseBody();
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		int sent = 0;
+		while(!page.isEmpty()){
+			for(ObjectInfo info: page){
+				writer.write(withHash(info).toLine() + "\n");
+			}
+			sent += page.size();
+			if(sent >= limit || page.size() < LIST_PAGE){
+				break;
+			}
+			after = page.get(page.size() - 1).getName();
+			page = storage.list(after, Math.min(limit - sent, LIST_PAGE));
+		}
+		writer.close();
+	}
+	
+	
+	/**
+	 * @return the parameters of a query, decoded
+	 */
+	protected static Map<String,String> getParameters(String query) throws IOException {
+		Map<String,String> parameters = new HashMap<String,String>();
+		for(String parameter: query.split("&")){
+			int separator = parameter.indexOf('=');
+			if(separator > 0){
+				parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+						URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+			}
+		}
+		return parameters;
 	}
 
 
 	@Override
 	public void start(Configuration config){
 
-		setPath(config.getString("path", System.getProperty("user.dir")));
+		String path = config.getString("path", System.getProperty("user.dir"));
+		
+		GroupCommit sync = null;
+		if(config.getBoolean("sync", false)){
+			sync = new GroupCommit(config.getLong("sync.latency", GroupCommit.DEFAULT_MAX_LATENCY),
+					config.getInt("sync.batch", GroupCommit.DEFAULT_MAX_BATCH));
+		}
+		
+		String type = config.getString("storage", DEFAULT_STORAGE);
+		try {
+			if(type.equalsIgnoreCase("log")){
+				storage = new LogStorage(path, config.getLong("log.segment", LogStorage.DEFAULT_SEGMENT_SIZE),
+						config.getDouble("log.compaction.ratio", LogStorage.DEFAULT_COMPACTION_RATIO),
+						config.getLong("log.compaction.period", LogStorage.DEFAULT_COMPACTION_PERIOD), sync);
+			}
+			else if(type.equalsIgnoreCase("dedup")){
+				storage = new DedupStorage(path, sync);
+			}
+			else if(type.equalsIgnoreCase(DEFAULT_STORAGE)){
+				int shards = config.getInt("file.shards", FileStorage.DEFAULT_SHARDS);
+				if(config.getBoolean("file.migrate", false)){
+					DAT.getLog().info(FileStorage.migrate(path, shards) + " files moved to a layout of "
+							+ shards + " levels");
+				}
+				storage = new FileStorage(path, shards, sync);
+			}
+			else{
+				throw new IllegalArgumentException("Invalid storage " + type);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to open storage at " + path + ": " + e.getMessage());
+		}
+		this.path = path;
+		
+		long mmapCapacity = config.getLong("mmap.capacity", 0);
+		if(mmapCapacity > 0){
+			regions = new MappedRegionCache(mmapCapacity, config.getString("mmap.policy", DEFAULT_MMAP_POLICY),
+					config.getLong("mmap.max", DEFAULT_MMAP_MAX));
+		}
 
 		super.start(config);
 
@@ -2,76 +2,113 @@ package web;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import dat.core.DAT;
 
 /**
- * Maintains a queue of locks for individual named entries.
- * 
- * Each queue is implemented as a BlockingQueue with capacity for one (1) element.
- * To lock an entry, a put is tried in the queue. If the queue is empty, the put
- * continues, but if it already has an element, blocks. 
- * 
- * To release an entry, the element is removed.
- * 
+ * Maintains locks for individual named entries.
+ *
+ * Each entry can be reserved in shared mode, by any number of readers at
+ * the same time, or in exclusive mode, by a single owner. Each lock is implemented
+ * as a fair Semaphore: a shared reservation takes one permit and an exclusive
+ * reservation takes all of them. As permits are not associated with threads, an
+ * exclusive reservation can be released by a thread other than the one that
+ * made it (for instance, when a transaction is committed). Being fair, readers
+ * arriving after a waiting owner can't delay it indefinitely.
+ *
+ * The locks are kept in a number of stripes, selected by the hash of the entry.
+ * Each stripe has its own mutex, which is held only to find or create the lock,
+ * never while waiting for it, so reservations of entries in different stripes
+ * don't interfere. Locks not used by any thread are removed.
+ *
  * @author Pablo Chacin
  *
  */
 public class EntryLock {
 
+	/**
+	 * Permits of each entry. An exclusive reservation takes all of them.
+	 */
+	protected static final int PERMITS = Integer.MAX_VALUE;
 
 	/**
-	 * Lock to prevent concurrent access to lock queue from multiple threads
+	 * Lock of an entry
 	 */
-	protected Lock lock;
+	protected static class Entry {
+
+		protected Semaphore permits = new Semaphore(PERMITS, true);
+
+		/**
+		 * Number of threads holding or waiting for the lock. Guarded by the stripe's mutex
+		 */
+		protected int users;
+
+		/**
+		 * Current exclusive owner, if any
+		 */
+		protected volatile String owner;
+	}
 
 	/**
-	 * Map used to maintain the queues od lock for individual entries on the cache.
+	 * A partition of the locks
 	 */
-	protected Map<String,BlockingQueue>entryLocks;
+	protected static class Stripe {
+
+		/**
+		 * Lock to prevent concurrent access to the stripe's locks from multiple threads
+		 */
+		protected Lock lock = new ReentrantLock();
+
+		/**
+		 * Map used to maintain the locks of the entries in the stripe.
+		 */
+		protected Map<String,Entry> entryLocks = new HashMap<String,Entry>();
+	}
+
+	protected Stripe[] stripes;
+
+	protected int mask;
 
 	public EntryLock(){
-		this.lock = new ReentrantLock();
-		this.entryLocks = new HashMap<String,BlockingQueue>();
+		this(4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param concurrency number of stripes. Rounded up to a power of two
+	 */
+	public EntryLock(int concurrency){
+		int size = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+		this.stripes = new Stripe[size];
+		for(int i = 0; i < size; i++){
+			stripes[i] = new Stripe();
+		}
+		this.mask = size - 1;
 	}
 
 
 	/**
-	 * Checks if the entry and, if so, locks it and waits it to be released.
+	 * Reserves the entry in exclusive mode, waiting until it is released by the current
+	 * owner and readers.
 	 * Controls local concurrent access from multiple threads.
-	 * 
+	 *
 	 * @param entry
+	 * @param owner identification of the owner
 	 */
 	protected void reserveEntry(String entry,String owner){
-		//prevent concurrent access from concurrent local threads
-		lock.lock();
 
-		//get the entry's blocking queue
-		BlockingQueue entryLock= entryLocks.get(entry);
+		Entry entryLock = retain(entry);
 
-		//if entry's lock has not been initialized, initialize it
-		if(entryLock == null){
-			entryLock = new ArrayBlockingQueue<String>(1);
-			entryLocks.put(entry,entryLock);
-		}
-
-		try{
-			entryLock.put(owner);
-		} catch (InterruptedException e) {
-			DAT.getLog().warn("Interrupted while waiting for lock");
-		}
-
-		lock.unlock();
+		entryLock.permits.acquireUninterruptibly(PERMITS);
+		entryLock.owner = owner;
 	}
 
 
 	/**
 	 * Convenience method that allows an "anonymous" lock
-	 * 
+	 *
 	 * @param entry
 	 */
 	public void reserveEntry(String entry){
@@ -80,27 +117,48 @@ public class EntryLock {
 
 
 	/**
-	 * Releases a locked entry in the cache. 
-	 * @see #lockEntry(String)
-	 * 
+	 * Reserves the entry in shared mode, waiting if it is reserved in exclusive mode.
+	 *
 	 * @param entry
 	 */
+	public void reserveShared(String entry){
+
+		Entry entryLock = retain(entry);
+
+		entryLock.permits.acquireUninterruptibly();
+	}
+
+
+	/**
+	 * Releases an entry reserved in exclusive mode. If the entry is reserved by
+	 * another owner, the request is ignored.
+	 * @see #reserveEntry(String,String)
+	 *
+	 * @param entry
+	 * @param owner
+	 */
 	public void releaseEntry(String entry,String owner){
 
-		//prevent concurrent access from concurrent local threads 
-		lock.lock();
+		Stripe stripe = stripe(entry);
 
-		BlockingQueue entryLock = entryLocks.get(entry);
+		stripe.lock.lock();
+		Entry entryLock = stripe.entryLocks.get(entry);
+		stripe.lock.unlock();
 
-		if(entryLock != null){
-			entryLock.remove();
-		}
-		else{
+		if(entryLock == null || entryLock.owner == null){
 			DAT.getLog().debug("Releasing an unlocked entry " + entry);
+			return;
 		}
 
-		lock.unlock();
+		if(!entryLock.owner.equals(owner)){
+			DAT.getLog().debug("Releasing entry " + entry + " locked by " + entryLock.owner);
+			return;
+		}
 
+		entryLock.owner = null;
+		entryLock.permits.release(PERMITS);
+
+		dispose(entry,entryLock);
 	}
 
 
@@ -108,4 +166,93 @@ public class EntryLock {
 		releaseEntry(entry,"");
 	}
 
+
+	/**
+	 * Releases an entry reserved in shared mode.
+	 * @see #reserveShared(String)
+	 *
+	 * @param entry
+	 */
+	public void releaseShared(String entry){
+
+		Stripe stripe = stripe(entry);
+
+		stripe.lock.lock();
+		Entry entryLock = stripe.entryLocks.get(entry);
+		stripe.lock.unlock();
+
+		if(entryLock == null){
+			DAT.getLog().debug("Releasing an unlocked entry " + entry);
+			return;
+		}
+
+		entryLock.permits.release();
+
+		dispose(entry,entryLock);
+	}
+
+
+	/**
+	 * Returns the lock of an entry, creating it if needed, and registers
+	 * a new user
+	 */
+	protected Entry retain(String entry){
+		Stripe stripe = stripe(entry);
+
+		stripe.lock.lock();
+		try{
+			Entry entryLock = stripe.entryLocks.get(entry);
+
+			//if entry's lock has not been initialized, initialize it
+			if(entryLock == null){
+				entryLock = new Entry();
+				stripe.entryLocks.put(entry,entryLock);
+			}
+			entryLock.users++;
+
+			return entryLock;
+		}finally{
+			stripe.lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Unregisters a user of a lock. If there are no more users, the lock is removed
+	 */
+	protected void dispose(String entry,Entry entryLock){
+		Stripe stripe = stripe(entry);
+
+		stripe.lock.lock();
+		try{
+			entryLock.users--;
+			if(entryLock.users == 0){
+				stripe.entryLocks.remove(entry);
+			}
+		}finally{
+			stripe.lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return the number of entries with a lock in use
+	 */
+	public int size(){
+		int size = 0;
+		for(Stripe stripe: stripes){
+			stripe.lock.lock();
+			size += stripe.entryLocks.size();
+			stripe.lock.unlock();
+		}
+		return size;
+	}
+
+
+	protected Stripe stripe(String entry){
+		int h = entry.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & mask];
+	}
+
 }
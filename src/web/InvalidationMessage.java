@@ -0,0 +1,10 @@
+package web;
+
+/**
+ * Notifies the cache servers that an object has been modified in the data server.
+ * The attribute "object" has the name of the object.
+ *
+ */
+public class InvalidationMessage extends dat.Message {
+
+}
@@ -1,6 +1,8 @@
 package web;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
@@ -9,6 +11,7 @@ import java.util.Random;
 
 import org.apache.commons.configuration.Configuration;
 
+import utils.FileUtils;
 import utils.HttpUtils.HttpException;
 
 import com.sun.net.httpserver.Headers;
@@ -18,6 +21,9 @@ import com.sun.net.httpserver.HttpHandler;
 /**
  * Redirects the requests to a randomly selected server
  * 
+ * The content of requests and responses is copied as a stream, through a buffer
+ * of fixed size. Content of unknown length is sent with chunked transfer encoding.
+ * 
  * @author Pablo Chacin
  *
  */
@@ -90,8 +96,11 @@ public class ProxyServer extends WebServer {
 	@Override
 	public void handle(HttpExchange exchange) throws IOException {
 
-		//get the request path
-		String path = exchange.getRequestURI().getPath();
+		//get the request path, with the query
+		String path = exchange.getRequestURI().getRawPath();
+		if(exchange.getRequestURI().getRawQuery() != null){
+			path += "?" + exchange.getRequestURI().getRawQuery();
+		}
 		
 		// get the request method
 		String method = exchange.getRequestMethod();		
@@ -129,55 +138,62 @@ public class ProxyServer extends WebServer {
 			}
 			
 			//copy input content to output 
-			List<String> contentlength = exchange.getRequestHeaders().get("Content-length");
-			
-			int size = -1;
-			if(contentlength != null){
-				size = Integer.parseInt(contentlength.get(0));
-			}
+			long size = getRequestLength(exchange);
+			boolean chunked = "chunked".equalsIgnoreCase(requestHeaders.getFirst("Transfer-encoding"));
 			
 			if(size > 0){
-				serverConnection.setDoOutput(true);					
+				serverConnection.setDoOutput(true);
+				serverConnection.setFixedLengthStreamingMode(size);
+			}
+			else if(chunked){
+				serverConnection.setDoOutput(true);
+				serverConnection.setChunkedStreamingMode(FileUtils.BUFFER_SIZE);
 			}
 						
 			
 			//execute request
 		     serverConnection.setRequestMethod(method);
 
-		     if(size > 0){
-					byte[] content = new byte[size];
-					exchange.getRequestBody().read(content);
-		    	    serverConnection.getOutputStream().write(content);
-		    	    serverConnection.getOutputStream().flush();
-		    	    serverConnection.getOutputStream().close();
+		     if(size > 0 || chunked){
+		    	    OutputStream out = serverConnection.getOutputStream();
+		    	    FileUtils.copyStream(exchange.getRequestBody(), out);
+		    	    out.close();
 		     }
 		     
 			//get response
 		     int rc = serverConnection.getResponseCode();
 		     
 		     
-			//copy headers
+			//copy headers. The length and transfer encoding are set when sending the response
 		    Map<String,List<String>> responseFields = serverConnection.getHeaderFields(); 
 		    for(Map.Entry<String, List<String>> f: responseFields.entrySet()){
-		    	if(f.getKey() != null)
+		    	if(f.getKey() != null && !f.getKey().equalsIgnoreCase("Content-length")
+		    			&& !f.getKey().equalsIgnoreCase("Transfer-encoding"))
 		    		exchange.getResponseHeaders().put(f.getKey(), f.getValue());
 		    	
 		    }
 		    
 		     //copy content
-		     
-		     int length = serverConnection.getContentLength();
-		     if(length > 0){
-
-			     exchange.sendResponseHeaders(rc, length);
-		    	 byte[] content = new byte[length];
-		    	 serverConnection.getInputStream().read(content);
-		    	 exchange.getResponseBody().write(content);
-
+		     InputStream in = (rc < HTTP_BAD_REQUEST) ? serverConnection.getInputStream() : serverConnection.getErrorStream();
+		     long length = serverConnection.getContentLengthLong();
+		     if(method.equalsIgnoreCase("HEAD")){
+		    	 //the length of the response to a HEAD request must be set explicitly
+		    	 if(length >= 0){
+		    		 exchange.getResponseHeaders().set("Content-length", Long.toString(length));
+		    	 }
+			     exchange.sendResponseHeaders(rc, -1);
 		     }
-		     else{
+		     else if(in == null || length == 0 || rc == HTTP_NOT_MODIFIED){
 			     exchange.sendResponseHeaders(rc, -1);
 		     }
+		     else{
+		    	 //length is unknown, use chunked encoding
+			     exchange.sendResponseHeaders(rc, length > 0 ? length : 0);
+			     FileUtils.copyStream(in, exchange.getResponseBody());
+		     }
+		     if(in != null){
+		    	 in.close();
+		     }
 		    		     
 					     
 			
@@ -0,0 +1,185 @@
+package web;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Groups concurrent modifications of distinct objects in batches executed
+ * as a single transaction.
+ *
+ * The first modification of a batch waits a time window for others to join it
+ * and then executes the batch on behalf of all of them. The batch is executed
+ * before the window ends if it reaches a maximum number of objects or bytes, or
+ * if a modification of an object already in the batch arrives, which starts a
+ * new batch. Each modification gets the result of its batch.
+ *
+ */
+public class TransactionBatcher {
+
+	/**
+	 * Executes a batch of modifications
+	 */
+	public interface Executor {
+
+		/**
+		 * @param batch new content of each object
+		 * @return true if the batch was executed
+		 */
+		public boolean execute(Map<String, byte[]> batch);
+	}
+
+	protected static class Batch {
+
+		protected LinkedHashMap<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+
+		protected long bytes;
+
+		/**
+		 * Indicates the batch doesn't accept more modifications
+		 */
+		protected boolean closed;
+
+		protected boolean done;
+
+		protected boolean executed;
+	}
+
+	protected Executor executor;
+
+	/**
+	 * Maximum time the first modification of a batch waits for others, in milliseconds
+	 */
+	protected long window;
+
+	protected int maxSize;
+
+	protected long maxBytes;
+
+	/**
+	 * Batch accepting modifications, if any. Guarded by this batcher
+	 */
+	protected Batch open;
+
+	protected long batches;
+
+	protected long modifications;
+
+	/**
+	 * @param executor
+	 * @param window maximum time the first modification of a batch waits for others, in milliseconds
+	 * @param maxSize maximum number of objects of a batch
+	 * @param maxBytes maximum bytes of a batch. A larger modification is executed alone
+	 */
+	public TransactionBatcher(Executor executor, long window, int maxSize, long maxBytes) {
+		this.executor = executor;
+		this.window = window;
+		this.maxSize = Math.max(1, maxSize);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds a modification to a batch and waits for the batch to be executed
+	 *
+	 * @param object
+	 * @param content
+	 * @return true if the batch was executed
+	 */
+	public boolean execute(String object, byte[] content) {
+
+		Batch batch;
+		boolean first = false;
+		boolean interrupted = false;
+
+		synchronized (this) {
+			if (open != null && (open.contents.containsKey(object) || open.bytes + content.length > maxBytes)) {
+				close(open);
+			}
+			if (open == null) {
+				open = new Batch();
+				first = true;
+			}
+			batch = open;
+			batch.contents.put(object, content);
+			batch.bytes += content.length;
+			modifications++;
+
+			if (batch.contents.size() >= maxSize || batch.bytes >= maxBytes) {
+				close(batch);
+			}
+
+			if (first) {
+				long end = System.currentTimeMillis() + window;
+				long remaining = window;
+				while (!batch.closed && remaining > 0) {
+					interrupted |= await(remaining);
+					remaining = end - System.currentTimeMillis();
+				}
+				close(batch);
+				batches++;
+			} else {
+				while (!batch.done) {
+					interrupted |= await(0);
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				return batch.executed;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		//only the first modification gets here, to execute the batch
+		boolean executed = false;
+		try {
+			executed = executor.execute(batch.contents);
+		} finally {
+			synchronized (this) {
+				batch.executed = executed;
+				batch.done = true;
+				notifyAll();
+			}
+		}
+		return executed;
+	}
+
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	public synchronized long getModifications() {
+		return modifications;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "batches=" + batches + " modifications=" + modifications;
+	}
+
+	/**
+	 * Stops accepting modifications in a batch. Must be called synchronized
+	 */
+	protected void close(Batch batch) {
+		batch.closed = true;
+		if (open == batch) {
+			open = null;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits on this batcher. Must be called synchronized
+	 *
+	 * @return true if interrupted while waiting
+	 */
+	private boolean await(long time) {
+		try {
+			wait(time);
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		}
+	}
+}
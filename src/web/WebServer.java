@@ -3,12 +3,29 @@ package web;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.configuration.Configuration;
 
+import utils.CompressionUtils;
 import utils.FileUtils;
+import utils.ByteRange;
+import utils.HashUtils;
+import utils.HttpUtils.Head;
+import utils.HttpUtils.Part;
 import utils.HttpUtils.HttpException;
 
 import com.sun.net.httpserver.HttpExchange;
@@ -23,6 +40,34 @@ import dat.utils.CmdLineArgs;
  * It handles the initialization issues for servers. Sub classes must implement the handling
  * of requests
  * 
+ * Objects of at least "compression.threshold" bytes are compressed with gzip when
+ * stored, if that reduces them to "compression.ratio" of their size. Compressed objects
+ * are sent as is to clients that accept gzip encoding and decompressed for the others.
+ * Content sent compressed by clients ("Content-Encoding: gzip") is stored as is.
+ * 
+ * Responses to GET carry an entity tag (ETag), the hash of the stored content. 
+ * Requests with a matching "If-None-Match" header get a 304 (Not Modified) response
+ * without content. Servers should set the tag of each version when they store it
+ * (see {@link #setETag(String, String)}), otherwise it is computed on each request.
+ * 
+ * A GET request with a single range ("Range: bytes=first-last") gets only that part of
+ * the content, as sent to the client (compressed, if it accepts gzip), with a 206 (Partial
+ * Content) response. Servers can read only the part requested by overriding 
+ * {@link #getContentPart(String, ByteRange, boolean)}. Requests with an "If-Range" 
+ * header get the whole content, as entity tags are weak.
+ * 
+ * Servers which store the content outside memory can send it as a stream by overriding
+ * {@link #openContent(String)}, and receive it as a stream by overriding 
+ * {@link #putContentStream(String, InputStream)}, so objects of any size are sent and
+ * received through a buffer of fixed size. Content decompressed while sent is sent
+ * with chunked transfer encoding, as its length is unknown. Content to be compressed
+ * is received as a whole, as compressing it depends on its size.
+ * 
+ * A HEAD request gets the headers of the GET response without the content. Servers 
+ * can answer it from the metadata of the objects, without getting their content, by 
+ * overriding {@link #getHead(String)}. The length of content decompressed while sent
+ * is unknown, so it is not given.
+ * 
  * @author Pablo Chacin
  *
  */
@@ -45,12 +90,58 @@ public abstract class WebServer implements HttpHandler {
 
 	protected static int HTTP_NOT_FOUND = 404;
 	
+	protected static int HTTP_NOT_MODIFIED = 304;
+	
+	protected static int HTTP_PARTIAL_CONTENT = 206;
+	
+	protected static int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	
 	protected static int HTTP_BAD_REQUEST = 400;
 	
 	protected static int HTTP_NOT_IMPLEMENTED= 501;
 	
 	protected static int HTTP_NO_CONTENT = -1;
 	
+	protected static double DEFAULT_COMPRESSION_RATIO = 0.9;
+	
+	/**
+	 * Stored content of an object, read as a stream
+	 */
+	protected static class StoredChannel {
+		
+		protected ReadableByteChannel channel;
+		
+		/**
+		 * Position of the stored content in the channel, if it is a file
+		 */
+		protected long offset;
+		
+		protected long size;
+		
+		/**
+		 * @param channel channel positioned at the start of the stored content
+		 * @param size size of the stored content
+		 */
+		public StoredChannel(ReadableByteChannel channel,long size){
+			this(channel, 0, size);
+		}
+		
+		/**
+		 * @param channel file with the stored content, read with positional reads
+		 * @param offset position of the stored content in the file
+		 * @param size size of the stored content
+		 */
+		public StoredChannel(FileChannel channel,long offset,long size){
+			this((ReadableByteChannel)channel, offset, size);
+		}
+		
+		private StoredChannel(ReadableByteChannel channel,long offset,long size){
+			this.channel = channel;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+	
 	
 	/**
 	 * Protocol used to access this server
@@ -84,6 +175,21 @@ public abstract class WebServer implements HttpHandler {
 	 */
 	protected HttpServer server;
 	
+	/**
+	 * Minimum size of the objects compressed when stored. If 0, objects are not compressed
+	 */
+	protected int compressionThreshold;
+	
+	/**
+	 * Maximum size of a compressed object, relative to its original size, to keep it compressed
+	 */
+	protected double compressionRatio = DEFAULT_COMPRESSION_RATIO;
+	
+	/**
+	 * Entity tag of the current version of the objects, when known
+	 */
+	protected ConcurrentMap<String,String> etags = new ConcurrentHashMap<String,String>();
+	
 	
 	/**
 	 * Constructor. Create an instance of the server associated to a port and a path to
@@ -127,6 +233,8 @@ public abstract class WebServer implements HttpHandler {
 			setUrlPath(configuration.getString("url",DEFAULT_URL));
 			setPort(configuration.getInteger("port",DEFAULT_PORT));
 			setRange(configuration.getInteger("range",DEFAULT_RANGE));
+			compressionThreshold = configuration.getInt("compression.threshold",0);
+			compressionRatio = configuration.getDouble("compression.ratio",DEFAULT_COMPRESSION_RATIO);
 			
 			start();
 			
@@ -250,6 +358,10 @@ public abstract class WebServer implements HttpHandler {
 			doGET(exchange);
 			
 
+		} else if(method.equalsIgnoreCase("HEAD")) {
+
+			doHEAD(exchange);
+
 		} else  if(method.equalsIgnoreCase("DELETE")) {
 
 			doDELETE(exchange);
@@ -289,30 +401,338 @@ public abstract class WebServer implements HttpHandler {
 		
 		String object = getObject(exchange);
 		
-		byte[] content = getContent(object);
+		//if the current version is known, the content is not needed to answer a revalidation
+		String etag = getETag(object);
+		if(etag != null && isNotModified(exchange, etag)){
+			sendNotModified(exchange, etag);
+			return;
+		}
 		
-		if(content.length> 0){
-			exchange.sendResponseHeaders(HTTP_OK,content.length);
-			FileUtils.writeBytesToStream(exchange.getResponseBody(), content);
+		ByteRange range = getRange(exchange);
+		if(range != null){
+			doRange(exchange, object, range, etag);
+			return;
 		}
-		else{
-			exchange.sendResponseHeaders(HTTP_OK,HTTP_NO_CONTENT);
+		
+		StoredChannel stored = openContent(object);
+		if(stored != null){
+			doStream(exchange, object, stored, etag);
+			return;
+		}
+		
+		ByteBuffer content = getContentBuffer(object);
+		
+		try{
+			//the tag only belongs to the content if it didn't change while getting it
+			if(etag == null || !etag.equals(etags.get(object))){
+				etag = computeETag(content);
+			}
+			if(isNotModified(exchange, etag)){
+				sendNotModified(exchange, etag);
+				return;
+			}
+			exchange.getResponseHeaders().set("ETag",etag);
+			
+			//compressed content is sent as is if the client accepts it
+			boolean gzip = isGzip(content, acceptsGzip(exchange));
+			ByteBuffer body = getBody(content, gzip);
+			if(gzip){
+				exchange.getResponseHeaders().set("Content-Encoding","gzip");
+			}
+			exchange.getResponseHeaders().set("Vary","Accept-Encoding");
+			exchange.getResponseHeaders().set("Accept-Ranges","bytes");
+			
+			if(body.remaining()> 0){
+				exchange.sendResponseHeaders(HTTP_OK,body.remaining());
+				FileUtils.writeBufferToStream(exchange.getResponseBody(), body);
+			}
+			else{
+				exchange.sendResponseHeaders(HTTP_OK,HTTP_NO_CONTENT);
+			}
+		}finally{
+			releaseContentBuffer(object, content);
 		}
 	}
 	
 	
+	/**
+	 * Sends the content of an object read from a stream
+	 * 
+	 * @param etag tag of the object found before opening the stream, or null
+	 */
+	protected void doStream(HttpExchange exchange,String object,StoredChannel stored,String etag) throws IOException{
+		
+		try{
+			FileChannel file = (stored.channel instanceof FileChannel) ? (FileChannel)stored.channel : null;
+			int headerSize = (int)Math.min(stored.size, CompressionUtils.HEADER_SIZE);
+			ByteBuffer header;
+			if(file != null){
+				header = FileUtils.readFromChannel(file, stored.offset, headerSize);
+			}
+			else{
+				header = ByteBuffer.allocate(headerSize);
+				while(header.hasRemaining()){
+					if(stored.channel.read(header) == -1){
+						break;
+					}
+				}
+				header.flip();
+			}
+			
+			//the tag can't be computed without reading the content twice
+			if(etag != null && etag.equals(etags.get(object))){
+				exchange.getResponseHeaders().set("ETag",etag);
+			}
+			exchange.getResponseHeaders().set("Vary","Accept-Encoding");
+			
+			OutputStream out = exchange.getResponseBody();
+			if(CompressionUtils.method(header) == CompressionUtils.GZIP && !acceptsGzip(exchange)){
+				//length is unknown, use chunked encoding
+				exchange.sendResponseHeaders(HTTP_OK,0);
+				InputStream in = new GZIPInputStream((file != null) ? 
+						FileUtils.openStream(file, stored.offset + header.limit(), stored.size - header.limit()) :
+						Channels.newInputStream(stored.channel));
+				FileUtils.copyStream(in, out);
+			}
+			else{
+				if(CompressionUtils.method(header) == CompressionUtils.GZIP){
+					exchange.getResponseHeaders().set("Content-Encoding","gzip");
+				}
+				exchange.getResponseHeaders().set("Accept-Ranges","bytes");
+				
+				//the header of encoded content is not sent
+				if(CompressionUtils.isEncoded(header)){
+					header.position(header.limit());
+				}
+				long length = stored.size - header.position();
+				if(length == 0){
+					exchange.sendResponseHeaders(HTTP_OK,HTTP_NO_CONTENT);
+					return;
+				}
+				exchange.sendResponseHeaders(HTTP_OK,length);
+				out.write(header.array(), header.position(), header.remaining());
+				if(file != null){
+					FileUtils.transferToStream(file, stored.offset + header.limit(), stored.size - header.limit(), out);
+				}
+				else{
+					FileUtils.copyChannel(stored.channel, out);
+				}
+			}
+			out.close();
+		}finally{
+			stored.channel.close();
+		}
+	}
+	
+	
+	/**
+	 * Sends a part of the content of an object
+	 * 
+	 * @param etag tag of the object found before getting the part, or null
+	 */
+	protected void doRange(HttpExchange exchange,String object,ByteRange range,String etag) throws IOException,HttpException{
+		
+		Part part = getContentPart(object, range, acceptsGzip(exchange));
+		
+		try{
+			if(etag != null && etag.equals(etags.get(object))){
+				exchange.getResponseHeaders().set("ETag",etag);
+			}
+			exchange.getResponseHeaders().set("Vary","Accept-Encoding");
+			exchange.getResponseHeaders().set("Accept-Ranges","bytes");
+			exchange.getResponseHeaders().set("Content-Range",part.toContentRange());
+			
+			if(!part.isSatisfied()){
+				exchange.sendResponseHeaders(HTTP_RANGE_NOT_SATISFIABLE,HTTP_NO_CONTENT);
+				return;
+			}
+			if(part.isGzip()){
+				exchange.getResponseHeaders().set("Content-Encoding","gzip");
+			}
+			exchange.sendResponseHeaders(HTTP_PARTIAL_CONTENT,part.getCount());
+			OutputStream out = exchange.getResponseBody();
+			part.writeTo(out);
+			out.close();
+		}finally{
+			part.close();
+		}
+	}
+	
+	
+	/**
+	 * @return the range requested, or null if the whole content must be sent
+	 */
+	protected ByteRange getRange(HttpExchange exchange){
+		if(exchange.getRequestHeaders().getFirst("If-Range") != null){
+			return null;
+		}
+		return ByteRange.parse(exchange.getRequestHeaders().getFirst("Range"));
+	}
+	
+	
+	/**
+	 * @return true if a stored content is sent compressed with gzip
+	 * @param acceptsGzip true if the client accepts gzip encoding
+	 */
+	protected static boolean isGzip(ByteBuffer content,boolean acceptsGzip){
+		return acceptsGzip && CompressionUtils.method(content) == CompressionUtils.GZIP;
+	}
+	
+	
+	/**
+	 * Returns the body sent for a stored content: its payload, if sent compressed,
+	 * or the decoded content
+	 */
+	protected static ByteBuffer getBody(ByteBuffer content,boolean gzip) throws IOException{
+		if(!CompressionUtils.isEncoded(content)){
+			return content;
+		}
+		if(gzip){
+			return CompressionUtils.payload(content);
+		}
+		return ByteBuffer.wrap(CompressionUtils.decode(content));
+	}
+	
+	
+	protected void sendNotModified(HttpExchange exchange,String etag) throws IOException{
+		exchange.getResponseHeaders().set("ETag",etag);
+		exchange.getResponseHeaders().set("Vary","Accept-Encoding");
+		exchange.sendResponseHeaders(HTTP_NOT_MODIFIED,HTTP_NO_CONTENT);
+	}
+	
+	
+	/**
+	 * @return true if the request has an "If-None-Match" header matching the tag. Tags are 
+	 * compared ignoring whether they are weak
+	 */
+	protected boolean isNotModified(HttpExchange exchange,String etag){
+		List<String> values = exchange.getRequestHeaders().get("If-None-Match");
+		if(values == null){
+			return false;
+		}
+		String opaque = opaqueTag(etag);
+		for(String value: values){
+			for(String tag: value.split(",")){
+				tag = tag.trim();
+				if(tag.equals("*") || opaqueTag(tag).equals(opaque)){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	
+	private static String opaqueTag(String etag){
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+	
+	
 	protected void doPUT(HttpExchange exchange) throws IOException, HttpException{
 		String object = getObject(exchange);
 		
-		byte[] content;
-			content = FileUtils.readBytesFromStream(exchange.getRequestBody());
-			putContent(object,content);
-			exchange.sendResponseHeaders(HTTP_OK,HTTP_NO_CONTENT);
+		InputStream body = exchange.getRequestBody();
 		
+		//content compressed by the client is stored as is
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		if(encoding != null && encoding.trim().equalsIgnoreCase("gzip")){
+			putContentStream(object, CompressionUtils.wrap(CompressionUtils.GZIP, body));
+		}
+		else if(compressionThreshold == 0 || (getRequestLength(exchange) >= 0 && getRequestLength(exchange) < compressionThreshold)){
+			//content which won't be compressed is stored as it arrives
+			putContentStream(object, CompressionUtils.identity(body));
+		}
+		else{
+			byte[] content = FileUtils.readBytesFromStream(body, getRequestLength(exchange));
+			putContent(object,CompressionUtils.encode(content, compressionThreshold, compressionRatio));
+		}
+		exchange.sendResponseHeaders(HTTP_OK,HTTP_NO_CONTENT);
 
 	}
 	
 	
+	/**
+	 * @return the length of the content of a request, or -1 if unknown
+	 */
+	protected long getRequestLength(HttpExchange exchange){
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if(length == null){
+			return -1;
+		}
+		try{
+			return Long.parseLong(length.trim());
+		}catch(NumberFormatException e){
+			return -1;
+		}
+	}
+	
+	
+	
+	/**
+	 * @return true if the client accepts content compressed with gzip
+	 */
+	protected boolean acceptsGzip(HttpExchange exchange){
+		List<String> values = exchange.getRequestHeaders().get("Accept-Encoding");
+		if(values == null){
+			return false;
+		}
+		for(String value: values){
+			for(String coding: value.split(",")){
+				String[] parameters = coding.split(";");
+				if(!parameters[0].trim().equalsIgnoreCase("gzip")){
+					continue;
+				}
+				//gzip;q=0 means not accepted
+				for(int i = 1; i < parameters.length; i++){
+					String parameter = parameters[i].trim();
+					if(parameter.startsWith("q=") && parameter.substring(2).trim().matches("0(\\.0*)?")){
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Sends the headers of the response to a GET request of the whole content
+	 */
+	protected void doHEAD(HttpExchange exchange) throws IOException,HttpException{
+		
+		String object = getObject(exchange);
+		
+		Head head = getHead(object);
+		
+		String etag = head.getETag();
+		if(etag != null){
+			if(isNotModified(exchange, etag)){
+				sendNotModified(exchange, etag);
+				return;
+			}
+			exchange.getResponseHeaders().set("ETag",etag);
+		}
+		
+		boolean gzip = isGzip(head.getHeader(), acceptsGzip(exchange));
+		if(gzip){
+			exchange.getResponseHeaders().set("Content-Encoding","gzip");
+		}
+		exchange.getResponseHeaders().set("Vary","Accept-Encoding");
+		exchange.getResponseHeaders().set("Accept-Ranges","bytes");
+		if(head.getLastModified() > 0){
+			exchange.getResponseHeaders().set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+					Instant.ofEpochMilli(head.getLastModified()).atOffset(ZoneOffset.UTC)));
+		}
+		
+		//the length of the response to a HEAD request must be set explicitly
+		long length = head.getBodyLength(gzip);
+		if(length >= 0){
+			exchange.getResponseHeaders().set("Content-length", Long.toString(length));
+		}
+		exchange.sendResponseHeaders(HTTP_OK,HTTP_NO_CONTENT);
+	}
+	
 	
 	protected void doDELETE(HttpExchange exchange) throws IOException, HttpException{
 		String object = getObject(exchange);
@@ -325,6 +745,9 @@ public abstract class WebServer implements HttpHandler {
 	 * Gets the content of the given object and returns it in a byte[].
 	 * The method must allocate the space for the content.
 	 * 
+	 * The content is returned as stored, encoded as given to {@link #putContent(String, byte[])}
+	 * (see {@link CompressionUtils}).
+	 * 
 	 * If the object doesn't exists, must leave it unchanged.
 	 * 
 	 * @param object logical path to the object
@@ -334,7 +757,183 @@ public abstract class WebServer implements HttpHandler {
 	protected abstract byte[] getContent(String object) throws HttpException;
 	
 	
+	/**
+	 * Gets the content of the given object as a buffer. Used to serve GET requests.
+	 * 
+	 * Servers that keep the content in buffers (for instance, off-heap) can override
+	 * this method to avoid copying the content to an array. The buffer is released 
+	 * with {@link #releaseContentBuffer(String, ByteBuffer)} once sent.
+	 * 
+	 * By default, wraps the content returned by {@link #getContent(String)}
+	 * 
+	 * @param object logical path to the object
+	 * @return a buffer with the content, from its position to its limit
+	 */
+	protected ByteBuffer getContentBuffer(String object) throws HttpException {
+		return ByteBuffer.wrap(getContent(object));
+	}
+	
+	
+	/**
+	 * Gets a range of the content of an object, as sent to the client: the payload of
+	 * content compressed with gzip if the client accepts it, otherwise the decoded content.
+	 * 
+	 * By default, gets the whole content with {@link #getContentBuffer(String)} and copies
+	 * the range
+	 * 
+	 * @param object logical path to the object
+	 * @param range range requested
+	 * @param acceptsGzip true if the client accepts gzip encoding
+	 * @return the part of the content. If the range is not satisfiable, the part has no content
+	 */
+	protected Part getContentPart(String object,ByteRange range,boolean acceptsGzip) throws HttpException {
+		ByteBuffer content = getContentBuffer(object);
+		try{
+			boolean gzip = isGzip(content, acceptsGzip);
+			return Part.slice(getBody(content, gzip), range, gzip);
+		}catch(IOException e){
+			throw new HttpException(HTTP_SERVER_ERROR, e);
+		}finally{
+			releaseContentBuffer(object, content);
+		}
+	}
+	
+	
+	/**
+	 * Gets the metadata of the stored content of an object, to answer a HEAD request.
+	 * The response has no tag if the metadata has none.
+	 * 
+	 * By default, gets the whole content with {@link #getContentBuffer(String)}
+	 * 
+	 * @param object logical path to the object
+	 * @return the metadata
+	 */
+	protected Head getHead(String object) throws HttpException {
+		String etag = etags.get(object);
+		ByteBuffer content = getContentBuffer(object);
+		try{
+			if(etag == null || !etag.equals(etags.get(object))){
+				etag = computeETag(content);
+			}
+			return Head.of(content, 0, etag);
+		}finally{
+			releaseContentBuffer(object, content);
+		}
+	}
+	
+	
+	/**
+	 * Opens the stored content of an object to send it as a stream, without getting it
+	 * as a whole. The channel is closed once the content is sent.
+	 * 
+	 * By default, returns null: the content is got with {@link #getContentBuffer(String)}
+	 * 
+	 * @param object logical path to the object
+	 * @return the stored content, or null if it must be got as a whole
+	 */
+	protected StoredChannel openContent(String object) throws HttpException {
+		return null;
+	}
+	
+	
+	/**
+	 * Releases a buffer obtained by {@link #getContentBuffer(String)}.
+	 * 
+	 * By default, does nothing.
+	 * 
+	 * @param object logical path to the object
+	 * @param content the buffer
+	 */
+	protected void releaseContentBuffer(String object,ByteBuffer content) {
+	}
+	
+	
+	/**
+	 * Returns the entity tag of the current version of an object, if known without
+	 * getting its content. 
+	 * 
+	 * By default, returns the tag set with {@link #setETag(String, String)}
+	 * 
+	 * @param object logical path to the object
+	 * @return the tag, or null if unknown
+	 */
+	protected String getETag(String object) {
+		return etags.get(object);
+	}
+	
+	
+	/**
+	 * Sets the entity tag of the current version of an object. To keep the tag consistent
+	 * with the content served concurrently, the tag must be removed before the content
+	 * changes and set after it has changed.
+	 * 
+	 * @param object logical path to the object
+	 * @param etag the tag, as given by {@link #computeETag(ByteBuffer)}
+	 */
+	protected void setETag(String object,String etag) {
+		etags.put(object, etag);
+	}
+	
+	
+	protected void removeETag(String object) {
+		etags.remove(object);
+	}
+	
+	
+	/**
+	 * Computes the entity tag of a content, as stored. The content is the same for 
+	 * all the encodings it is sent with, so the tag is weak.
+	 */
+	protected static String computeETag(ByteBuffer content) {
+		return toETag(HashUtils.sha256(content));
+	}
+	
+	
+	/**
+	 * @return the entity tag of a content given its SHA-256 hash, in hexadecimal
+	 */
+	protected static String toETag(String hash) {
+		return "W/\"" + hash + "\"";
+	}
+	
+	
+	/**
+	 * @return the SHA-256 hash of a content given its entity tag, in hexadecimal
+	 * @see #toETag(String)
+	 */
+	protected static String toHash(String etag) {
+		return etag.substring(3, etag.length() - 1);
+	}
+	
+	
+	protected static String computeETag(byte[] content) {
+		return computeETag(ByteBuffer.wrap(content));
+	}
+	
+	
+	/**
+	 * Stores the content of an object. The content is encoded, and compressed if
+	 * "compression.threshold" is set (see {@link CompressionUtils}), and must be 
+	 * stored as given.
+	 * 
+	 * @param object logical path to the object
+	 * @param content encoded content
+	 */
 	protected abstract void  putContent(String object,byte[]content) throws HttpException;
+	
+	
+	/**
+	 * Stores the content of an object read from a stream. The content is encoded as
+	 * given to {@link #putContent(String, byte[])}.
+	 * 
+	 * By default, reads the whole content and stores it with {@link #putContent(String, byte[])}
+	 * 
+	 * @param object logical path to the object
+	 * @param content stream with the encoded content
+	 */
+	protected void putContentStream(String object,InputStream content) throws HttpException, IOException {
+		putContent(object, FileUtils.readBytesFromStream(content));
+	}
 		
 	
 	protected abstract void delete(String object) throws HttpException;
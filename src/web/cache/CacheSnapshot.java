@@ -0,0 +1,249 @@
+package web.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import utils.HashUtils;
+
+/**
+ * Saves the content of an {@link ObjectCache} to a file and restores it.
+ *
+ * The snapshot is read by mapping the file in memory. The contents are put in the
+ * cache as views of the mapped file, so they are not copied unless the cache keeps
+ * contents off-heap.
+ *
+ * Each object is saved with the hash of its content (SHA-256), only if it is the same
+ * as the hash of the object in the data server, the content the server tags it with.
+ * Objects whose hash is not known by the server are not saved. When restored, an
+ * object is accepted only if the hash in the data server is still the same, so objects
+ * modified or deleted after the snapshot was taken are discarded.
+ * Objects are saved in ascending order of their keys, the order in which they are
+ * validated.
+ *
+ * The file starts with a header (magic number, version and number of objects),
+ * followed by the objects. Each object is stored as the length of its name, the name
+ * in UTF-8, the hash in hexadecimal ({@link #HASH_SIZE} bytes), the length of the
+ * content and the content.
+ * The file is divided in regions of {@link #REGION_SIZE} bytes, mapped separately.
+ * Objects don't cross regions: if an object doesn't fit in the rest of a region, a
+ * name length of 0 marks the end of the region and the object starts in the next one.
+ * Objects larger than a region are not saved.
+ *
+ */
+public class CacheSnapshot {
+
+	public static final int MAGIC = 0x41584353;
+
+	public static final int VERSION = 3;
+
+	/**
+	 * Size of the regions of the file mapped separately
+	 */
+	public static final int REGION_SIZE = 1 << 30;
+
+	protected static final int HEADER_SIZE = 12;
+
+	/**
+	 * Length of the SHA-256 hash in hexadecimal
+	 */
+	protected static final int HASH_SIZE = 64;
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Gives the hash of the content of an object in the data server. The objects are
+	 * queried in ascending order of their keys, so the validator can walk a listing of
+	 * the data server once instead of keeping all of it.
+	 */
+	public interface Validator {
+
+		/**
+		 * @param key a key greater than the previous one queried
+		 * @return the SHA-256 hash of the content in hexadecimal, or null if the object
+		 *         doesn't exist or its hash is not known
+		 * @throws IOException if the hash can't be obtained
+		 */
+		public String hash(String key) throws IOException;
+	}
+
+	protected File file;
+
+	public CacheSnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Saves the content of the cache. The snapshot is written to a temporary file which
+	 * replaces the previous snapshot once complete.
+	 *
+	 * @param cache
+	 * @param validator gives the hash of the objects in the data server. Objects
+	 *        without it or with a different content are not saved.
+	 * @param excluded objects that must not be saved
+	 * @return the number of objects saved
+	 * @throws IOException
+	 */
+	public int save(ObjectCache cache, Validator validator, Set<String> excluded) throws IOException {
+
+		File temp = new File(file.getPath() + ".tmp");
+
+		List<String> keys = cache.keys();
+		Collections.sort(keys);
+		int saved = 0;
+
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+			channel.position(HEADER_SIZE);
+
+			long regionEnd = REGION_SIZE;
+
+			for (String key : keys) {
+
+				if (excluded.contains(key)) {
+					continue;
+				}
+				String hash = validator.hash(key);
+				if (hash == null || hash.length() != HASH_SIZE) {
+					continue;
+				}
+				ByteBuffer content = cache.acquireQuietly(key);
+				if (content == null) {
+					continue;
+				}
+				try {
+					byte[] name = key.getBytes(UTF8);
+					int length = 4 + name.length + HASH_SIZE + 4 + content.remaining();
+					if (length > REGION_SIZE - 4 || !hash.equals(HashUtils.sha256(content))) {
+						continue;
+					}
+
+					//leave space to mark the end of the region
+					if (channel.position() + length > regionEnd - 4) {
+						ByteBuffer end = ByteBuffer.allocate(4).putInt(0);
+						end.flip();
+						writeFully(channel, end);
+						channel.position(regionEnd);
+						regionEnd += REGION_SIZE;
+					}
+
+					ByteBuffer header = ByteBuffer.allocate(4 + name.length + HASH_SIZE + 4);
+					header.putInt(name.length).put(name).put(hash.getBytes(UTF8)).putInt(content.remaining());
+					header.flip();
+
+					writeFully(channel, header);
+					writeFully(channel, content);
+					saved++;
+				} finally {
+					cache.release(content);
+				}
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(saved);
+			header.flip();
+			channel.position(0);
+			writeFully(channel, header);
+
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		return saved;
+	}
+
+	/**
+	 * Restores the objects of the snapshot which are still valid.
+	 *
+	 * @param cache
+	 * @param validator gives the current hash of the objects in the data server
+	 * @return the number of objects restored
+	 * @throws IOException if the snapshot can't be read or is not valid
+	 */
+	public int load(ObjectCache cache, Validator validator) throws IOException {
+
+		if (!file.exists()) {
+			return 0;
+		}
+
+		int restored = 0;
+		String previous = null;
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+
+			if (size < HEADER_SIZE) {
+				throw new IOException("Invalid snapshot " + file);
+			}
+
+			for (long regionStart = 0; regionStart < size; regionStart += REGION_SIZE) {
+
+				long regionLength = Math.min(REGION_SIZE, size - regionStart);
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionLength);
+
+				if (regionStart == 0) {
+					if (region.getInt() != MAGIC || region.getInt() != VERSION) {
+						throw new IOException("Invalid snapshot " + file);
+					}
+					//number of objects, not needed
+					region.getInt();
+				}
+
+				while (region.remaining() >= 4) {
+					int nameLength = region.getInt();
+					if (nameLength <= 0) {
+						break;
+					}
+
+					byte[] name = new byte[nameLength];
+					region.get(name);
+					byte[] hash = new byte[HASH_SIZE];
+					region.get(hash);
+					int length = region.getInt();
+
+					ByteBuffer content = region.slice();
+					content.limit(length);
+					region.position(region.position() + length);
+
+					String key = new String(name, UTF8);
+					//snapshots are saved in order, a key out of order means a corrupt file
+					if (previous != null && key.compareTo(previous) <= 0) {
+						throw new IOException("Invalid snapshot " + file);
+					}
+					previous = key;
+					if (new String(hash, UTF8).equals(validator.hash(key)) && cache.put(key, content)) {
+						restored++;
+					}
+				}
+			}
+		} finally {
+			//mappings remain valid after the channel is closed
+			in.close();
+		}
+
+		return restored;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
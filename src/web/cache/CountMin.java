@@ -0,0 +1,41 @@
+package web.cache;
+
+/**
+ * Layout of the counters of a Count-Min sketch, shared by the sketches of the cache.
+ *
+ * A sketch has {@link #ROWS} rows of counters, each one indexed by a different hash
+ * of the key, derived from its hash code and the seed of the row. The width of the
+ * rows is a power of two.
+ *
+ */
+class CountMin {
+
+	/**
+	 * Seeds used to derive the hash of each row
+	 */
+	private static final int[] SEEDS = { 0x9E3779B9, 0x7F4A7C15, 0x85EBCA6B, 0xC2B2AE35 };
+
+	static final int ROWS = SEEDS.length;
+
+	private CountMin() {
+	}
+
+	/**
+	 * @param expectedKeys estimated number of distinct keys
+	 * @return the width of the rows for a number of keys
+	 */
+	static int width(int expectedKeys) {
+		return Integer.highestOneBit(Math.max(16, expectedKeys - 1)) << 1;
+	}
+
+	/**
+	 * Maps a hash to the column of a row
+	 *
+	 * @param mask width of the rows minus one
+	 */
+	static int index(int hash, int row, int mask) {
+		int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+}
@@ -0,0 +1,50 @@
+package web.cache;
+
+import java.util.Set;
+
+/**
+ * Decides which entry of an {@link ObjectCache} must be discarded when the cache
+ * runs out of space.
+ *
+ * The policy only keeps track of the keys (and their sizes). The content of the
+ * entries and the accounting of the space used is done by the cache, which
+ * notifies the policy of every access, insertion and removal.
+ *
+ * Implementations don't need to be thread safe, the cache serializes the calls.
+ *
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * Records a lookup of a key. It is called for both hits and misses, so
+	 * frequency based policies can account for keys not yet in the cache.
+	 *
+	 * @param key
+	 */
+	public void recordAccess(String key);
+
+	/**
+	 * Records the insertion of a new entry in the cache
+	 *
+	 * @param key
+	 * @param size size of the entry, in bytes
+	 */
+	public void recordInsert(String key, int size);
+
+	/**
+	 * Records the removal of an entry, either by an explicit remove or an eviction.
+	 *
+	 * @param key
+	 */
+	public void recordRemove(String key);
+
+	/**
+	 * Selects the next entry to be evicted. The entry is not removed from the policy
+	 * until the cache calls {@link #recordRemove(String)}.
+	 *
+	 * @param pinned keys that must not be selected
+	 * @return the key of the victim, or null if there is no entry that can be evicted
+	 */
+	public String selectVictim(Set<String> pinned);
+
+}
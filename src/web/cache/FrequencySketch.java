@@ -0,0 +1,110 @@
+package web.cache;
+
+/**
+ * Approximates the access frequency of keys using a Count-Min sketch.
+ *
+ * The sketch has a fixed number of rows, each one with a counter array indexed
+ * by a different hash of the key. The frequency of a key is the minimum of its
+ * counters, which may overestimate but never underestimates the real count.
+ *
+ * Counters saturate at {@link #MAX_COUNT}. To let the sketch follow changes in
+ * the popularity of keys, all counters are halved after a number of increments
+ * proportional to its width (aging).
+ *
+ * The class is not thread safe.
+ *
+ */
+public class FrequencySketch {
+
+	/**
+	 * Maximum value of a counter
+	 */
+	public static final int MAX_COUNT = 15;
+
+	/**
+	 * Counters, one row per hash
+	 */
+	protected byte[][] counters;
+
+	/**
+	 * Mask to map a hash to a column. Width is always a power of two.
+	 */
+	protected int mask;
+
+	/**
+	 * Number of increments since last aging
+	 */
+	protected int additions;
+
+	/**
+	 * Number of increments that triggers the aging of the counters
+	 */
+	protected int sampleSize;
+
+	/**
+	 * Creates a sketch sized for a given number of distinct keys
+	 *
+	 * @param expectedKeys estimated number of distinct keys to track
+	 */
+	public FrequencySketch(int expectedKeys) {
+		int width = CountMin.width(expectedKeys);
+		this.counters = new byte[CountMin.ROWS][width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	/**
+	 * Increments the frequency of a key
+	 *
+	 * @param key
+	 */
+	public void increment(Object key) {
+		int hash = key.hashCode();
+		boolean added = false;
+		for (int row = 0; row < CountMin.ROWS; row++) {
+			int column = index(hash, row);
+			if (counters[row][column] < MAX_COUNT) {
+				counters[row][column]++;
+				added = true;
+			}
+		}
+
+		if (added && (++additions >= sampleSize)) {
+			age();
+		}
+	}
+
+	/**
+	 * Returns the estimated frequency of a key
+	 *
+	 * @param key
+	 * @return the estimated number of accesses, up to {@link #MAX_COUNT}
+	 */
+	public int frequency(Object key) {
+		int hash = key.hashCode();
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < CountMin.ROWS; row++) {
+			frequency = Math.min(frequency, counters[row][index(hash, row)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halves all the counters
+	 */
+	protected void age() {
+		for (byte[] row : counters) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = (byte) (row[i] >>> 1);
+			}
+		}
+		additions = additions / 2;
+	}
+
+	/**
+	 * Maps a hash to the column of a row
+	 */
+	protected int index(int hash, int row) {
+		return CountMin.index(hash, row, mask);
+	}
+}
@@ -0,0 +1,109 @@
+package web.cache;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring. Maps keys to the nodes responsible for them.
+ *
+ * Each node is placed at a number of points of the ring (virtual nodes), given
+ * by the hash of its name. The nodes of a key are the first distinct nodes found
+ * walking the ring clockwise from the hash of the key. Adding or removing a node
+ * only moves the keys of its own points.
+ *
+ */
+public class HashRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 100;
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Node at each point of the ring
+	 */
+	protected TreeMap<Long, String> ring;
+
+	protected int nodes;
+
+	/**
+	 * Creates a ring
+	 *
+	 * @param nodes names of the nodes
+	 * @param virtualNodes number of points of each node
+	 */
+	public HashRing(Collection<String> nodes, int virtualNodes) {
+		this.ring = new TreeMap<Long, String>();
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(node + "#" + i), node);
+			}
+		}
+		this.nodes = nodes.size();
+	}
+
+	/**
+	 * Returns the nodes responsible for a key, starting with its owner
+	 *
+	 * @param key
+	 * @param replicas number of nodes
+	 * @return up to replicas distinct nodes
+	 */
+	public List<String> getNodes(String key, int replicas) {
+		List<String> result = new ArrayList<String>();
+		replicas = Math.min(replicas, nodes);
+		if (replicas <= 0) {
+			return result;
+		}
+
+		SortedMap<Long, String> tail = ring.tailMap(hash(key));
+		collect(tail, result, replicas);
+		if (result.size() < replicas) {
+			collect(ring, result, replicas);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the owner of the key, or null if the ring is empty
+	 */
+	public String getOwner(String key) {
+		List<String> owner = getNodes(key, 1);
+		return owner.isEmpty() ? null : owner.get(0);
+	}
+
+	private static void collect(SortedMap<Long, String> points, List<String> result, int replicas) {
+		for (Map.Entry<Long, String> point : points.entrySet()) {
+			if (!result.contains(point.getValue())) {
+				result.add(point.getValue());
+				if (result.size() == replicas) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hash of a name: first 8 bytes of its MD5 digest
+	 */
+	protected static long hash(String name) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] digest = md5.digest(name.getBytes(UTF8));
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,249 @@
+package web.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds the most frequent keys of a stream of accesses (heavy hitters).
+ *
+ * The frequency of all the keys is estimated with a Count-Min sketch. The keys with the
+ * highest estimates are kept in a min-heap of limited size: a key enters the heap when
+ * its estimate exceeds the lowest one in the heap, which leaves it. Priorities in the
+ * heap are updated lazily, only when the lowest key is examined.
+ *
+ * All counts are halved after a number of accesses proportional to the width of the
+ * sketch, so the estimates follow the recent accesses.
+ *
+ * Recording an access never waits: if another thread is recording, the access is not
+ * counted. Under contention, accesses are sampled instead of counted, which keeps the
+ * relative frequencies.
+ *
+ */
+public class HeavyHitters {
+
+	/**
+	 * A key in the heap
+	 */
+	public static class Hitter {
+
+		protected String key;
+
+		protected long count;
+
+		/**
+		 * Count when the key was placed in the heap
+		 */
+		protected long priority;
+
+		protected Hitter(String key, long count) {
+			this.key = key;
+			this.count = count;
+			this.priority = count;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the estimated number of recent accesses
+		 */
+		public long getCount() {
+			return count;
+		}
+	}
+
+	protected int[][] counters;
+
+	protected int mask;
+
+	protected int additions;
+
+	protected int sampleSize;
+
+	/**
+	 * Maximum number of keys in the heap
+	 */
+	protected int size;
+
+	protected PriorityQueue<Hitter> heap;
+
+	protected Map<String, Hitter> hitters;
+
+	protected ReentrantLock lock = new ReentrantLock();
+
+	protected long recorded;
+
+	protected AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param size number of keys tracked
+	 * @param expectedKeys estimated number of distinct keys
+	 */
+	public HeavyHitters(int size, int expectedKeys) {
+		int width = CountMin.width(expectedKeys);
+		this.counters = new int[CountMin.ROWS][width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * width;
+		this.size = Math.max(1, size);
+		this.hitters = new HashMap<String, Hitter>();
+		this.heap = new PriorityQueue<Hitter>(this.size, new Comparator<Hitter>() {
+
+			@Override
+			public int compare(Hitter h1, Hitter h2) {
+				return Long.compare(h1.priority, h2.priority);
+			}
+		});
+	}
+
+	/**
+	 * Records an access to a key
+	 *
+	 * @param key
+	 */
+	public void record(String key) {
+		if (!lock.tryLock()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		try {
+			recorded++;
+			long count = increment(key);
+
+			Hitter hitter = hitters.get(key);
+			if (hitter != null) {
+				hitter.count = count;
+			} else if (hitters.size() < size) {
+				admit(key, count);
+			} else if (count > lowest().count) {
+				hitters.remove(heap.poll().key);
+				admit(key, count);
+			}
+
+			if (++additions >= sampleSize) {
+				age();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the keys with the highest estimates
+	 *
+	 * @param n maximum number of keys
+	 * @return the keys, in decreasing order of estimate
+	 */
+	public List<Hitter> top(int n) {
+		List<Hitter> top = new ArrayList<Hitter>();
+		lock.lock();
+		try {
+			for (Hitter hitter : hitters.values()) {
+				top.add(new Hitter(hitter.key, hitter.count));
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		Collections.sort(top, new Comparator<Hitter>() {
+
+			@Override
+			public int compare(Hitter h1, Hitter h2) {
+				return Long.compare(h2.count, h1.count);
+			}
+		});
+		return top.subList(0, Math.min(n, top.size()));
+	}
+
+	/**
+	 * @return the estimated number of recent accesses to a key
+	 */
+	public long estimate(String key) {
+		lock.lock();
+		try {
+			return frequency(key.hashCode());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of accesses not counted due to contention
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getRecorded() {
+		lock.lock();
+		try {
+			return recorded;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void admit(String key, long count) {
+		Hitter hitter = new Hitter(key, count);
+		hitters.put(key, hitter);
+		heap.add(hitter);
+	}
+
+	/**
+	 * Returns the key with the lowest estimate, updating the priorities found outdated
+	 */
+	private Hitter lowest() {
+		Hitter head = heap.peek();
+		while (head.priority != head.count) {
+			heap.poll();
+			head.priority = head.count;
+			heap.add(head);
+			head = heap.peek();
+		}
+		return head;
+	}
+
+	private long increment(String key) {
+		int hash = key.hashCode();
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < CountMin.ROWS; row++) {
+			int column = CountMin.index(hash, row, mask);
+			if (counters[row][column] < Integer.MAX_VALUE) {
+				counters[row][column]++;
+			}
+			min = Math.min(min, counters[row][column]);
+		}
+		return min;
+	}
+
+	private long frequency(int hash) {
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < CountMin.ROWS; row++) {
+			min = Math.min(min, counters[row][CountMin.index(hash, row, mask)]);
+		}
+		return min;
+	}
+
+	/**
+	 * Halves all the counts
+	 */
+	private void age() {
+		for (int[] row : counters) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] >>>= 1;
+			}
+		}
+		for (Hitter hitter : hitters.values()) {
+			hitter.count >>>= 1;
+			hitter.priority >>>= 1;
+		}
+		additions = 0;
+	}
+}
@@ -0,0 +1,63 @@
+package web.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Least Recently Used eviction policy.
+ *
+ * Keys are kept in a LinkedHashMap in access order, so the eldest entry
+ * is the least recently used one.
+ *
+ */
+public class LRUPolicy implements EvictionPolicy {
+
+	/**
+	 * Keys in access order, from the least to the most recently used
+	 */
+	protected LinkedHashMap<String, Integer> entries;
+
+	public LRUPolicy() {
+		this.entries = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+	}
+
+	@Override
+	public void recordAccess(String key) {
+		//a get in an access ordered map moves the key to the tail
+		entries.get(key);
+	}
+
+	@Override
+	public void recordInsert(String key, int size) {
+		entries.put(key, size);
+	}
+
+	@Override
+	public void recordRemove(String key) {
+		entries.remove(key);
+	}
+
+	@Override
+	public String selectVictim(Set<String> pinned) {
+		return eldest(entries, pinned);
+	}
+
+	/**
+	 * Returns the least recently used key of a map which is not pinned
+	 *
+	 * @param entries an access ordered map
+	 * @param pinned keys to skip
+	 * @return the key, or null if all the keys are pinned
+	 */
+	static String eldest(LinkedHashMap<String, Integer> entries, Set<String> pinned) {
+		Iterator<String> keys = entries.keySet().iterator();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			if (!pinned.contains(key)) {
+				return key;
+			}
+		}
+		return null;
+	}
+}
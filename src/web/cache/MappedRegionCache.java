@@ -0,0 +1,89 @@
+package web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import web.storage.Region;
+
+/**
+ * Cache of regions of files mapped in memory.
+ *
+ * The region of an object is mapped as a whole the first time it is read. The
+ * regions are kept in an {@link ObjectCache} bounded by the total size of the regions,
+ * so the eviction policy decides which objects remain mapped: with a frequency based
+ * policy, only the objects read frequently do. Reading a mapped region doesn't need
+ * any system call or copy, the content is served from the page cache.
+ *
+ * The regions of evicted or invalidated files are unmapped by the garbage collector.
+ * A file must not be modified while a region of it is being read, and its region must
+ * be invalidated after modifying it.
+ *
+ */
+public class MappedRegionCache {
+
+	protected ObjectCache regions;
+
+	/**
+	 * Maximum size of a file to be mapped
+	 */
+	protected long maxRegion;
+
+	/**
+	 * @param capacity maximum number of bytes mapped
+	 * @param policy name of the eviction policy (see {@link ObjectCache#createPolicy(String, long)})
+	 * @param maxRegion maximum size of a file to be mapped
+	 */
+	public MappedRegionCache(long capacity, String policy, long maxRegion) {
+		this.regions = new ObjectCache(capacity, ObjectCache.createPolicy(policy, capacity));
+		this.maxRegion = Math.min(maxRegion, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns a mapped region, mapping it if it isn't
+	 *
+	 * @param key name of the region
+	 * @param location region of the file to map
+	 * @return a read only view of the region, or null if the region is empty or too large
+	 *         to be mapped
+	 * @throws java.io.FileNotFoundException if the file doesn't exist
+	 */
+	public ByteBuffer acquire(String key, Region location) throws IOException {
+
+		ByteBuffer region = regions.acquire(key);
+		if (region != null) {
+			return region;
+		}
+
+		long size = location.getLength();
+		if (size == 0 || size > maxRegion) {
+			return null;
+		}
+		FileChannel channel = location.open();
+		try {
+			region = channel.map(FileChannel.MapMode.READ_ONLY, location.getOffset(), size).asReadOnlyBuffer();
+		} finally {
+			//the region remains valid once the file is closed
+			channel.close();
+		}
+
+		regions.put(key, region);
+		return region.duplicate();
+	}
+
+	/**
+	 * Discards the region of a file, if mapped
+	 */
+	public void invalidate(String key) {
+		regions.remove(key);
+	}
+
+	public long getSize() {
+		return regions.getSize();
+	}
+
+	@Override
+	public String toString() {
+		return regions.toString();
+	}
+}
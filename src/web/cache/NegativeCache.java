@@ -0,0 +1,124 @@
+package web.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, for a limited time, the objects known not to exist, so repeated
+ * requests for them don't reach the data server.
+ *
+ * Entries expire after a fixed time to live. The number of entries is bounded;
+ * when full, the oldest entry is discarded.
+ *
+ * All the operations are synchronized.
+ *
+ */
+public class NegativeCache {
+
+	/**
+	 * Expiration time of each entry, in insertion order
+	 */
+	protected LinkedHashMap<String, Long> entries;
+
+	/**
+	 * Maximum number of entries
+	 */
+	protected int capacity;
+
+	/**
+	 * Time to live of the entries, in milliseconds
+	 */
+	protected long ttl;
+
+	protected long hits;
+
+	/**
+	 * Creates a negative cache
+	 *
+	 * @param capacity maximum number of entries
+	 * @param ttl time to live of the entries, in milliseconds
+	 */
+	public NegativeCache(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Long>();
+	}
+
+	/**
+	 * Checks if an object is known not to exist
+	 *
+	 * @param key
+	 * @return true if there is an entry for the object which has not expired
+	 */
+	public synchronized boolean contains(String key) {
+		Long expiration = entries.get(key);
+		if (expiration == null) {
+			return false;
+		}
+
+		if (expiration < System.currentTimeMillis()) {
+			entries.remove(key);
+			return false;
+		}
+
+		hits++;
+		return true;
+	}
+
+	/**
+	 * Registers an object as not existing
+	 *
+	 * @param key
+	 */
+	public synchronized void add(String key) {
+
+		if (capacity <= 0 || ttl <= 0) {
+			return;
+		}
+
+		//re insert to keep insertion order
+		entries.remove(key);
+
+		if (entries.size() >= capacity) {
+			purge();
+		}
+
+		entries.put(key, System.currentTimeMillis() + ttl);
+	}
+
+	/**
+	 * Removes an object, for instance because it has been created
+	 *
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		entries.remove(key);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Removes expired entries. If none has expired, removes the oldest one.
+	 * As all the entries have the same time to live, they expire in insertion order.
+	 */
+	protected void purge() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		boolean removed = false;
+		while (iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			if (removed && entry.getValue() >= now) {
+				break;
+			}
+			iterator.remove();
+			removed = true;
+		}
+	}
+}
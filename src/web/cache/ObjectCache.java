@@ -0,0 +1,462 @@
+package web.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of object contents bounded by the total number of bytes stored.
+ *
+ * When an insertion exceeds the capacity, entries are evicted in the order given
+ * by an {@link EvictionPolicy} until there is enough space. Pinned entries are
+ * never evicted. If the space can't be obtained, the content is not cached.
+ *
+ * Contents are kept either in the heap or, if created with a {@link SlabAllocator},
+ * in direct memory. Off-heap contents can be read without copying them to the heap
+ * with {@link #acquire(String)}. The space of an acquired content is not reused
+ * until released with {@link #release(ByteBuffer)}, even if the entry is removed
+ * in the meantime.
+ *
+ * Keeps counters of hits, misses and evictions to help sizing the cache.
+ *
+ * All the operations are synchronized.
+ *
+ */
+public class ObjectCache {
+
+	/**
+	 * A cached content
+	 */
+	protected static class Entry {
+
+		/**
+		 * Read only view of the content
+		 */
+		protected ByteBuffer content;
+
+		/**
+		 * Location of the content in the allocator. Null for contents in the heap
+		 */
+		protected SlabAllocator.Slot slot;
+
+		/**
+		 * Number of readers that have acquired the content
+		 */
+		protected int readers;
+
+		/**
+		 * Indicates the entry is not longer in the cache
+		 */
+		protected boolean removed;
+
+		protected int length() {
+			return content.remaining();
+		}
+	}
+
+	/**
+	 * Cached objects, indexed by name
+	 */
+	protected Map<String, Entry> entries;
+
+	/**
+	 * Allocator for the contents. Null if contents are kept in the heap
+	 */
+	protected SlabAllocator allocator;
+
+	/**
+	 * Off-heap contents acquired by readers and the entry they belong to
+	 */
+	protected Map<ByteBuffer, Entry> leases;
+
+	/**
+	 * Policy that selects the entries to evict
+	 */
+	protected EvictionPolicy policy;
+
+	/**
+	 * Maximum number of bytes in the cache
+	 */
+	protected long capacity;
+
+	/**
+	 * Number of bytes currently in the cache
+	 */
+	protected long size;
+
+	/**
+	 * Number of pins for each pinned entry.
+	 */
+	protected Map<String, Integer> pins;
+
+	protected long hits;
+
+	protected long misses;
+
+	protected long evictions;
+
+	/**
+	 * Creates an instance of a cache
+	 *
+	 * @param capacity maximum number of bytes
+	 * @param policy the eviction policy
+	 */
+	public ObjectCache(long capacity, EvictionPolicy policy) {
+		this(capacity, policy, null);
+	}
+
+	/**
+	 * Creates an instance of a cache which keeps the contents off-heap
+	 *
+	 * @param capacity maximum number of bytes
+	 * @param policy the eviction policy
+	 * @param allocator the allocator for the contents. If null, contents are kept in the heap
+	 */
+	public ObjectCache(long capacity, EvictionPolicy policy, SlabAllocator allocator) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.allocator = allocator;
+		this.entries = new HashMap<String, Entry>();
+		this.pins = new HashMap<String, Integer>();
+		this.leases = new IdentityHashMap<ByteBuffer, Entry>();
+	}
+
+	/**
+	 * Creates an instance of one of the policies known by name.
+	 *
+	 * @param name "lru" or "tinylfu"
+	 * @param capacity capacity of the cache, in bytes
+	 * @return a new instance of the policy
+	 * @throws IllegalArgumentException if the policy is unknown
+	 */
+	public static EvictionPolicy createPolicy(String name, long capacity) {
+		if (name.equalsIgnoreCase("lru")) {
+			return new LRUPolicy();
+		}
+		if (name.equalsIgnoreCase("tinylfu")) {
+			return new TinyLFUPolicy(capacity);
+		}
+		throw new IllegalArgumentException("Unknown eviction policy " + name);
+	}
+
+	/**
+	 * Returns a copy of the content of an object, accounting the hit or miss
+	 *
+	 * @param key
+	 * @return the content, or null if the object is not in the cache
+	 */
+	public synchronized byte[] get(String key) {
+		Entry entry = lookup(key);
+		return (entry == null) ? null : toBytes(entry.content);
+	}
+
+	/**
+	 * Returns a read only view of the content of an object, accounting the hit or miss.
+	 * The view must be released with {@link #release(ByteBuffer)} once it is not
+	 * longer used.
+	 *
+	 * @param key
+	 * @return the content, or null if the object is not in the cache
+	 */
+	public synchronized ByteBuffer acquire(String key) {
+		Entry entry = lookup(key);
+		if (entry == null) {
+			return null;
+		}
+
+		ByteBuffer content = entry.content.duplicate();
+
+		//contents in the heap are not reused, so there is no need to track them
+		if (entry.slot != null) {
+			entry.readers++;
+			leases.put(content, entry);
+		}
+
+		return content;
+	}
+
+	/**
+	 * Releases a content obtained with {@link #acquire(String)}. If the entry was
+	 * removed while acquired and there are no other readers, its space is freed.
+	 *
+	 * @param content
+	 */
+	public synchronized void release(ByteBuffer content) {
+		Entry entry = leases.remove(content);
+		if (entry == null) {
+			return;
+		}
+
+		entry.readers--;
+		if (entry.removed && entry.readers == 0) {
+			allocator.free(entry.slot);
+		}
+	}
+
+	/**
+	 * @return the keys of the objects in the cache
+	 */
+	public synchronized List<String> keys() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Acquires the content of an object like {@link #acquire(String)}, without accounting
+	 * the access.
+	 *
+	 * @param key
+	 * @return the content, or null if the object is not in the cache
+	 */
+	public synchronized ByteBuffer acquireQuietly(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+
+		ByteBuffer content = entry.content.duplicate();
+		if (entry.slot != null) {
+			entry.readers++;
+			leases.put(content, entry);
+		}
+		return content;
+	}
+
+	/**
+	 * Checks if an object is in the cache, without accounting an access
+	 */
+	public synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Returns a copy of the content of an object without accounting an access.
+	 */
+	public synchronized byte[] peek(String key) {
+		Entry entry = entries.get(key);
+		return (entry == null) ? null : toBytes(entry.content);
+	}
+
+	/**
+	 * Puts the content of an object in the cache, replacing the previous content,
+	 * if any. Evicts entries as needed to keep the size under the capacity.
+	 *
+	 * Contents kept in the heap are not copied, so the caller must not modify
+	 * the array after calling this method.
+	 *
+	 * @param key
+	 * @param content content of the object. If null, the object is removed.
+	 * @return true if the content was cached, false if there was no space for it.
+	 */
+	public synchronized boolean put(String key, byte[] content) {
+		return put(key, (content == null) ? null : ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * Puts the remaining content of a buffer in the cache. If the contents are kept
+	 * in the heap, the buffer is not copied, so it can be used to cache contents
+	 * in other memory regions (for instance, mapped from a file) without copying them.
+	 *
+	 * @param key
+	 * @param content content of the object. If null, the object is removed.
+	 * @return true if the content was cached, false if there was no space for it.
+	 */
+	public synchronized boolean put(String key, ByteBuffer content) {
+
+		remove(key);
+
+		if (content == null) {
+			return false;
+		}
+
+		int length = content.remaining();
+
+		if (!makeRoom(length)) {
+			return false;
+		}
+
+		Entry entry = new Entry();
+		if (allocator == null) {
+			entry.content = content.slice().asReadOnlyBuffer();
+		} else {
+			entry.slot = allocate(content);
+			if (entry.slot == null) {
+				return false;
+			}
+			entry.content = entry.slot.getBuffer();
+		}
+
+		entries.put(key, entry);
+		size += length;
+		policy.recordInsert(key, length);
+
+		return true;
+	}
+
+	/**
+	 * Removes an object from the cache.
+	 *
+	 * @param key
+	 * @return true if the object was in the cache
+	 */
+	public synchronized boolean remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry == null) {
+			return false;
+		}
+
+		size -= entry.length();
+		policy.recordRemove(key);
+
+		entry.removed = true;
+		if (entry.slot != null && entry.readers == 0) {
+			allocator.free(entry.slot);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies the remaining content of a buffer into an array.
+	 * The position of the buffer is not modified.
+	 */
+	public static byte[] toBytes(ByteBuffer content) {
+		byte[] bytes = new byte[content.remaining()];
+		content.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Looks up an entry and accounts the access
+	 */
+	protected Entry lookup(String key) {
+		policy.recordAccess(key);
+
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Evicts entries until there is space for the given number of bytes
+	 *
+	 * @return false if the space can't be obtained
+	 */
+	protected boolean makeRoom(long length) {
+
+		if (length > capacity) {
+			return false;
+		}
+
+		while (size + length > capacity) {
+			if (!evict()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Allocates off-heap space for a content. As chunks are reused only by contents
+	 * of similar size, the allocation may fail even if the cache is under its capacity.
+	 * In this case, entries are evicted until the allocation succeeds.
+	 *
+	 * @return the slot, or null if the space can't be obtained
+	 */
+	protected SlabAllocator.Slot allocate(ByteBuffer content) {
+		SlabAllocator.Slot slot = allocator.allocate(content);
+		while (slot == null && evict()) {
+			slot = allocator.allocate(content);
+		}
+		return slot;
+	}
+
+	/**
+	 * Evicts the next victim selected by the policy
+	 *
+	 * @return false if there is no entry that can be evicted
+	 */
+	protected boolean evict() {
+		String victim = policy.selectVictim(pins.keySet());
+		if (victim == null) {
+			return false;
+		}
+		remove(victim);
+		evictions++;
+		return true;
+	}
+
+	/**
+	 * Prevents an entry from being evicted. Pins are counted, so the entry is
+	 * evictable again only when it has been unpinned as many times as pinned.
+	 *
+	 * The key may be pinned before being in the cache.
+	 *
+	 * @param key
+	 */
+	public synchronized void pin(String key) {
+		Integer count = pins.get(key);
+		pins.put(key, (count == null) ? 1 : count + 1);
+	}
+
+	/**
+	 * Releases a pin on an entry
+	 *
+	 * @param key
+	 */
+	public synchronized void unpin(String key) {
+		Integer count = pins.get(key);
+		if (count == null) {
+			return;
+		}
+		if (count == 1) {
+			pins.remove(key);
+		} else {
+			pins.put(key, count - 1);
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns a summary of the usage of the cache
+	 */
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		double ratio = (lookups > 0) ? (double) hits / (double) lookups : 0.0;
+		String offHeap = (allocator == null) ? "" : " offHeap=" + allocator.getAllocated();
+		return "objects=" + entries.size() + " size=" + size + "/" + capacity + offHeap +
+				" hits=" + hits + " misses=" + misses + " evictions=" + evictions +
+				" hitRatio=" + Math.round(ratio * 1000.0) / 1000.0;
+	}
+}
@@ -0,0 +1,154 @@
+package web.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent loads of the same key, so only one load is in progress
+ * for a key at any time (a "flight"). Threads requesting a key while it is
+ * being loaded wait for the result of the flight in progress instead of
+ * starting their own load.
+ *
+ * A flight can be invalidated while in progress, for instance if the key is
+ * modified. Threads already waiting still get its result, but the loader can
+ * check {@link Flight#isStale()} to decide if the result can be kept, and new
+ * requests start a new flight.
+ *
+ * @param <V> type of the loaded values
+ *
+ */
+public class SingleFlight<V> {
+
+	/**
+	 * Loads the value of a key
+	 */
+	public interface Loader<V> {
+
+		/**
+		 * Loads the value of a key.
+		 *
+		 * @param key
+		 * @param flight the flight on which the load is executed
+		 * @return the value
+		 * @throws Exception any exception is passed to the threads waiting for the flight
+		 */
+		public V load(String key, Flight<V> flight) throws Exception;
+	}
+
+	/**
+	 * A load in progress
+	 */
+	public static class Flight<V> {
+
+		/**
+		 * Indicates the flight was invalidated while in progress
+		 */
+		protected volatile boolean stale;
+
+		/**
+		 * Signaled when the load ends
+		 */
+		protected CountDownLatch done = new CountDownLatch(1);
+
+		protected V value;
+
+		protected Throwable failure;
+
+		public boolean isStale() {
+			return stale;
+		}
+
+		/**
+		 * Executes the load and signals the waiting threads
+		 */
+		protected void run(String key, Loader<V> loader) {
+			try {
+				value = loader.load(key, this);
+			} catch (Throwable e) {
+				failure = e;
+			} finally {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Waits for the end of the load. Interruptions are deferred until the load ends.
+		 */
+		protected V get() throws ExecutionException {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Flights in progress, by key
+	 */
+	protected ConcurrentMap<String, Flight<V>> flights;
+
+	public SingleFlight() {
+		this.flights = new ConcurrentHashMap<String, Flight<V>>();
+	}
+
+	/**
+	 * Returns the value of a key. If there is a flight in progress for the key, waits
+	 * for its result. Otherwise, executes the loader in the calling thread.
+	 *
+	 * @param key
+	 * @param loader
+	 * @return the value returned by the loader
+	 * @throws ExecutionException if the loader threw an exception. The exception is the cause
+	 */
+	public V execute(String key, Loader<V> loader) throws ExecutionException {
+
+		Flight<V> flight = new Flight<V>();
+		Flight<V> current = flights.putIfAbsent(key, flight);
+
+		if (current == null) {
+			try {
+				flight.run(key, loader);
+			} finally {
+				flights.remove(key, flight);
+			}
+			current = flight;
+		}
+
+		return current.get();
+	}
+
+	/**
+	 * Invalidates the flight in progress for a key, if any.
+	 *
+	 * @param key
+	 */
+	public void invalidate(String key) {
+		Flight<V> flight = flights.remove(key);
+		if (flight != null) {
+			flight.stale = true;
+		}
+	}
+
+	/**
+	 * @return the number of flights in progress
+	 */
+	public int getFlights() {
+		return flights.size();
+	}
+}
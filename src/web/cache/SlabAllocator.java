@@ -0,0 +1,331 @@
+package web.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Allocates space for object contents in direct (off-heap) memory, so large
+ * caches don't add to the garbage collector's work.
+ *
+ * Memory is divided into slabs of a fixed size. Each slab is assigned, on demand,
+ * to a size class and is split in chunks of the class' size. A content is stored
+ * in a chunk of the smallest class that can hold it. Freed chunks are reused for
+ * contents of the same class and when all the chunks of a slab are free, the slab
+ * is released and its memory can be used by any class or by a dedicated buffer.
+ *
+ * Contents larger than a slab are stored in a dedicated direct buffer.
+ *
+ * The class is not thread safe.
+ *
+ */
+public class SlabAllocator {
+
+	/**
+	 * Default size of the slabs
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 * Size of the smallest chunk
+	 */
+	public static final int MIN_CHUNK = 64;
+
+	/**
+	 * Growth factor between size classes
+	 */
+	public static final double GROWTH_FACTOR = 1.25;
+
+	/**
+	 * Location of an allocated content
+	 */
+	public static class Slot {
+
+		/**
+		 * Size class. -1 for a dedicated buffer
+		 */
+		protected int sizeClass;
+
+		/**
+		 * Index of the slab
+		 */
+		protected int slab;
+
+		/**
+		 * Offset of the chunk within the slab
+		 */
+		protected int offset;
+
+		/**
+		 * Length of the content
+		 */
+		protected int length;
+
+		/**
+		 * Buffer with the content, limited to the chunk
+		 */
+		protected ByteBuffer buffer;
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return a read only view of the content
+		 */
+		public ByteBuffer getBuffer() {
+			return buffer.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Size of the slabs
+	 */
+	protected int slabSize;
+
+	/**
+	 * Maximum number of bytes allocated from the system, including dedicated buffers
+	 */
+	protected long capacity;
+
+	/**
+	 * Bytes allocated from the system
+	 */
+	protected long allocated;
+
+	/**
+	 * Size of the chunks for each class
+	 */
+	protected int[] chunkSizes;
+
+	/**
+	 * Slabs allocated from the system. Null for released slabs
+	 */
+	protected List<ByteBuffer> slabs;
+
+	/**
+	 * Class each slab is assigned to. -1 if not assigned.
+	 */
+	protected List<Integer> slabClasses;
+
+	/**
+	 * Number of chunks in use in each slab
+	 */
+	protected List<Integer> slabUsage;
+
+	/**
+	 * Indexes of released slabs, to be reused
+	 */
+	protected ArrayDeque<Integer> freeSlabs;
+
+	/**
+	 * Free chunks of each class, encoded as (slab << 32 | offset)
+	 */
+	protected List<ArrayDeque<Long>> freeChunks;
+
+	/**
+	 * Creates an allocator
+	 *
+	 * @param capacity maximum number of bytes of direct memory to use
+	 * @param slabSize size of the slabs
+	 */
+	public SlabAllocator(long capacity, int slabSize) {
+		this.capacity = capacity;
+		this.slabSize = slabSize;
+
+		List<Integer> sizes = new ArrayList<Integer>();
+		int size = MIN_CHUNK;
+		while (size < slabSize / 2) {
+			sizes.add(size);
+			//keep chunks aligned to 8 bytes
+			size = (((int) (size * GROWTH_FACTOR)) + 7) & ~7;
+		}
+		sizes.add(slabSize);
+
+		this.chunkSizes = new int[sizes.size()];
+		this.freeChunks = new ArrayList<ArrayDeque<Long>>(sizes.size());
+		for (int i = 0; i < chunkSizes.length; i++) {
+			chunkSizes[i] = sizes.get(i);
+			freeChunks.add(new ArrayDeque<Long>());
+		}
+
+		this.slabs = new ArrayList<ByteBuffer>();
+		this.slabClasses = new ArrayList<Integer>();
+		this.slabUsage = new ArrayList<Integer>();
+		this.freeSlabs = new ArrayDeque<Integer>();
+	}
+
+	/**
+	 * Allocates space for a content and copies it.
+	 *
+	 * @param content
+	 * @return the slot, or null if there is no memory available.
+	 */
+	public Slot allocate(byte[] content) {
+		return allocate(ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * Allocates space for the remaining bytes of a buffer and copies them.
+	 * The position of the buffer is not modified.
+	 *
+	 * @param content
+	 * @return the slot, or null if there is no memory available.
+	 */
+	public Slot allocate(ByteBuffer content) {
+
+		int length = content.remaining();
+
+		Slot slot = (length > slabSize) ? allocateDedicated(length) : allocateChunk(length);
+		if (slot == null) {
+			return null;
+		}
+
+		slot.length = length;
+		slot.buffer.put(content.duplicate());
+		slot.buffer.flip();
+
+		return slot;
+	}
+
+	/**
+	 * Frees the space used by a slot. The slot must not be used after freed.
+	 *
+	 * @param slot
+	 */
+	public void free(Slot slot) {
+
+		if (slot.sizeClass < 0) {
+			//the memory is reclaimed when the buffer is collected
+			allocated -= slot.buffer.capacity();
+			return;
+		}
+
+		freeChunks.get(slot.sizeClass).push(encode(slot.slab, slot.offset));
+
+		int usage = slabUsage.get(slot.slab) - 1;
+		slabUsage.set(slot.slab, usage);
+
+		if (usage == 0) {
+			releaseSlab(slot.slab, slot.sizeClass);
+		}
+	}
+
+	/**
+	 * @return the number of bytes taken from the system
+	 */
+	public long getAllocated() {
+		return allocated;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	protected Slot allocateDedicated(int length) {
+		if (allocated + length > capacity) {
+			return null;
+		}
+
+		Slot slot = new Slot();
+		slot.sizeClass = -1;
+		slot.buffer = ByteBuffer.allocateDirect(length);
+		allocated += length;
+
+		return slot;
+	}
+
+	protected Slot allocateChunk(int length) {
+
+		int sizeClass = sizeClass(length);
+
+		if (freeChunks.get(sizeClass).isEmpty() && !assignSlab(sizeClass)) {
+			return null;
+		}
+
+		long chunk = freeChunks.get(sizeClass).pop();
+
+		Slot slot = new Slot();
+		slot.sizeClass = sizeClass;
+		slot.slab = (int) (chunk >>> 32);
+		slot.offset = (int) chunk;
+
+		ByteBuffer view = slabs.get(slot.slab).duplicate();
+		view.limit(slot.offset + length);
+		view.position(slot.offset);
+		slot.buffer = view.slice();
+
+		slabUsage.set(slot.slab, slabUsage.get(slot.slab) + 1);
+
+		return slot;
+	}
+
+	/**
+	 * Allocates a slab and assigns it to a class, splitting it in chunks.
+	 *
+	 * @return false if the capacity doesn't allow another slab
+	 */
+	protected boolean assignSlab(int sizeClass) {
+
+		if (allocated + slabSize > capacity) {
+			return false;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(slabSize);
+		allocated += slabSize;
+
+		Integer slab = freeSlabs.poll();
+		if (slab == null) {
+			slabs.add(buffer);
+			slabClasses.add(sizeClass);
+			slabUsage.add(0);
+			slab = slabs.size() - 1;
+		} else {
+			slabs.set(slab, buffer);
+			slabClasses.set(slab, sizeClass);
+		}
+
+		int chunkSize = chunkSizes[sizeClass];
+		for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+			freeChunks.get(sizeClass).add(encode(slab, offset));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Releases an unused slab, removing its chunks from the class. The memory
+	 * is reclaimed when the buffer is collected.
+	 */
+	protected void releaseSlab(int slab, int sizeClass) {
+		Iterator<Long> chunks = freeChunks.get(sizeClass).iterator();
+		while (chunks.hasNext()) {
+			if ((int) (chunks.next() >>> 32) == slab) {
+				chunks.remove();
+			}
+		}
+
+		slabs.set(slab, null);
+		slabClasses.set(slab, -1);
+		freeSlabs.push(slab);
+		allocated -= slabSize;
+	}
+
+	/**
+	 * Returns the smallest class which can hold a content of the given length
+	 */
+	protected int sizeClass(int length) {
+		for (int i = 0; i < chunkSizes.length; i++) {
+			if (chunkSizes[i] >= length) {
+				return i;
+			}
+		}
+		return chunkSizes.length - 1;
+	}
+
+	private static long encode(int slab, int offset) {
+		return ((long) slab << 32) | (offset & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,153 @@
+package web.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Window TinyLFU eviction policy.
+ *
+ * New entries are placed in a small LRU "window" which absorbs bursts of
+ * accesses to new keys. When the window exceeds its share of the capacity,
+ * its least recently used entry becomes a candidate to enter the main LRU
+ * region. The candidate is admitted only if its estimated frequency is
+ * higher than the one of the main region's victim; otherwise the candidate
+ * itself is evicted. Frequencies are estimated with a {@link FrequencySketch}
+ * fed with every lookup, including misses.
+ *
+ * This prevents one-time accesses (for example, a scan over many objects)
+ * from flushing the frequently used objects out of the cache.
+ *
+ */
+public class TinyLFUPolicy implements EvictionPolicy {
+
+	/**
+	 * Default fraction of the capacity used for the window
+	 */
+	public static final double DEFAULT_WINDOW = 0.01;
+
+	/**
+	 * Default estimation of the average object size, used to size the sketch
+	 */
+	public static final int DEFAULT_OBJECT_SIZE = 4096;
+
+	/**
+	 * Admission window, in access order
+	 */
+	protected LinkedHashMap<String, Integer> window;
+
+	/**
+	 * Main region, in access order
+	 */
+	protected LinkedHashMap<String, Integer> main;
+
+	/**
+	 * Bytes of the entries in the window
+	 */
+	protected long windowSize;
+
+	/**
+	 * Maximum bytes for the window
+	 */
+	protected long windowCapacity;
+
+	/**
+	 * Bytes of the entries in the main region
+	 */
+	protected long mainSize;
+
+	/**
+	 * Maximum bytes for the main region
+	 */
+	protected long mainCapacity;
+
+	protected FrequencySketch sketch;
+
+	/**
+	 * Creates a policy for a cache of the given capacity
+	 *
+	 * @param capacity capacity of the cache, in bytes
+	 */
+	public TinyLFUPolicy(long capacity) {
+		this(capacity, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param capacity capacity of the cache, in bytes
+	 * @param windowFraction fraction of the capacity used by the admission window
+	 */
+	public TinyLFUPolicy(long capacity, double windowFraction) {
+		this.window = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+		this.main = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+		this.windowCapacity = (long) (capacity * windowFraction);
+		this.mainCapacity = capacity - windowCapacity;
+		long expectedKeys = Math.max(1, capacity / DEFAULT_OBJECT_SIZE);
+		this.sketch = new FrequencySketch((int) Math.min(expectedKeys, 1 << 24));
+	}
+
+	@Override
+	public void recordAccess(String key) {
+		sketch.increment(key);
+
+		//reorder the key in the region it belongs to
+		if (window.get(key) == null) {
+			main.get(key);
+		}
+	}
+
+	@Override
+	public void recordInsert(String key, int size) {
+		recordRemove(key);
+		window.put(key, size);
+		windowSize += size;
+	}
+
+	@Override
+	public void recordRemove(String key) {
+		Integer size = window.remove(key);
+		if (size != null) {
+			windowSize -= size;
+			return;
+		}
+		size = main.remove(key);
+		if (size != null) {
+			mainSize -= size;
+		}
+	}
+
+	@Override
+	public String selectVictim(Set<String> pinned) {
+
+		while (true) {
+
+			//while the window is under its capacity, evict from main region
+			String candidate = null;
+			if (windowSize > windowCapacity) {
+				candidate = LRUPolicy.eldest(window, pinned);
+			}
+
+			String victim = LRUPolicy.eldest(main, pinned);
+
+			if (candidate == null) {
+				return (victim != null) ? victim : LRUPolicy.eldest(window, pinned);
+			}
+
+			int size = window.get(candidate);
+
+			//the candidate leaves the window. Admit it if the main region has space
+			//for it or if it is more popular than the main region's victim
+			boolean fits = (mainSize + size <= mainCapacity);
+			if (!fits && (victim != null) && (sketch.frequency(candidate) <= sketch.frequency(victim))) {
+				return candidate;
+			}
+
+			window.remove(candidate);
+			windowSize -= size;
+			main.put(candidate, size);
+			mainSize += size;
+
+			if (!fits && (victim != null)) {
+				return victim;
+			}
+		}
+	}
+}
@@ -0,0 +1,534 @@
+package web.cache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Queue of writes pending to be sent to the data server.
+ *
+ * Writes and deletions are accepted immediately and sent later by a background thread.
+ * Repeated writes of the same object not yet sent are coalesced: only the last content
+ * or deletion is sent. Writes are sent in batches of up to a number of objects, as soon as a batch
+ * is complete or the oldest write has waited a maximum lag. Writes which fail are
+ * retried after the maximum lag.
+ *
+ * Writes are appended to a journal file before being accepted, so they are not lost
+ * if the server stops before sending them. The pending writes in the journal are
+ * recovered when the queue is created. The journal is emptied when there are no
+ * pending writes and rewritten when it grows much larger than the pending writes.
+ *
+ * When the pending writes exceed a number of bytes, new writes wait until some of
+ * them are sent.
+ *
+ * Writes are sent only while the writer is active (see {@link Writer#isActive()}). Once
+ * it is not, the pending writes may be outdated by the writes of another queue, so
+ * they are discarded instead of sent, and the journal is emptied.
+ *
+ */
+public class WriteBehindQueue {
+
+	public static final int DEFAULT_BATCH = 32;
+
+	public static final long DEFAULT_LAG = 1000;
+
+	public static final long DEFAULT_LIMIT = 16 * 1024 * 1024;
+
+	/**
+	 * Minimum size of the journal before rewriting it
+	 */
+	protected static final long MIN_COMPACTION = 1024 * 1024;
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Length of the records of deletions in the journal
+	 */
+	protected static final int DELETION = -1;
+
+	/**
+	 * Sends the writes to their destination
+	 */
+	public interface Writer {
+
+		/**
+		 * @param key
+		 * @param content
+		 * @throws IOException if the write fails and must be retried
+		 */
+		public void write(String key, byte[] content) throws IOException;
+
+		/**
+		 * @param key
+		 * @throws IOException if the deletion fails and must be retried
+		 */
+		public void delete(String key) throws IOException;
+
+		/**
+		 * @return true if the pending writes can be sent, false if they must be discarded
+		 */
+		public boolean isActive();
+	}
+
+	/**
+	 * A pending write
+	 */
+	protected static class Write {
+
+		/**
+		 * Content of the object, or null if it is deleted
+		 */
+		protected byte[] content;
+
+		/**
+		 * Time the object was first written since it was last sent
+		 */
+		protected long since;
+
+		protected Write(byte[] content, long since) {
+			this.content = content;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * Pending writes, in order of arrival. Guarded by this queue
+	 */
+	protected LinkedHashMap<String, Write> pending;
+
+	/**
+	 * Bytes of the pending writes
+	 */
+	protected long pendingBytes;
+
+	protected Writer writer;
+
+	protected File file;
+
+	protected RandomAccessFile journal;
+
+	protected int batch;
+
+	protected long lag;
+
+	protected long limit;
+
+	/**
+	 * Indicates the journal must be forced to disk on each write
+	 */
+	protected boolean sync;
+
+	protected Thread flusher;
+
+	protected volatile boolean closed;
+
+	protected long flushed;
+
+	protected long coalesced;
+
+	protected long discarded;
+
+	/**
+	 * Creates the queue, recovers the writes pending in the journal and starts sending them
+	 *
+	 * @param file journal
+	 * @param writer
+	 * @param batch maximum number of objects sent in each batch
+	 * @param lag maximum time a write waits before being sent, in milliseconds
+	 * @param limit bytes of pending writes above which writes wait
+	 * @param sync if true, the journal is forced to disk on each write
+	 * @throws IOException if the journal can't be opened
+	 */
+	public WriteBehindQueue(File file, Writer writer, int batch, long lag, long limit, boolean sync)
+			throws IOException {
+		this.file = file;
+		this.writer = writer;
+		this.batch = Math.max(1, batch);
+		this.lag = lag;
+		this.limit = limit;
+		this.sync = sync;
+		this.pending = new LinkedHashMap<String, Write>();
+
+		this.journal = new RandomAccessFile(file, "rw");
+		recover();
+
+		this.flusher = new Thread("write-behind") {
+
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Accepts a write. Waits while the pending writes exceed the limit.
+	 *
+	 * @param key
+	 * @param content
+	 * @throws IOException if the write can't be added to the journal
+	 */
+	public void put(String key, byte[] content) throws IOException {
+		enqueue(key, content);
+	}
+
+	/**
+	 * Accepts a deletion. Waits while the pending writes exceed the limit.
+	 *
+	 * @param key
+	 * @throws IOException if the deletion can't be added to the journal
+	 */
+	public void delete(String key) throws IOException {
+		enqueue(key, null);
+	}
+
+	/**
+	 * Adds a write, or a deletion if the content is null
+	 */
+	protected synchronized void enqueue(String key, byte[] content) throws IOException {
+
+		boolean interrupted = false;
+		while (!closed && pendingBytes >= limit && !pending.isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (closed) {
+			throw new IOException("write behind queue closed");
+		}
+
+		append(journal.getChannel(), key, content);
+		if (sync) {
+			journal.getChannel().force(false);
+		}
+
+		long now = System.currentTimeMillis();
+		Write previous = pending.get(key);
+		if (previous != null) {
+			pendingBytes -= size(previous.content);
+			previous.content = content;
+			coalesced++;
+		} else {
+			pending.put(key, new Write(content, now));
+		}
+		pendingBytes += size(content);
+
+		notifyAll();
+	}
+
+	/**
+	 * Returns the content pending to be sent for an object
+	 *
+	 * @param key
+	 * @return the content, or null if there is no pending write or it is a deletion
+	 */
+	public synchronized byte[] get(String key) {
+		Write write = pending.get(key);
+		return (write == null) ? null : write.content;
+	}
+
+	/**
+	 * @param key
+	 * @return true if the object is pending to be deleted
+	 */
+	public synchronized boolean isDeleted(String key) {
+		Write write = pending.get(key);
+		return write != null && write.content == null;
+	}
+
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	public synchronized long getFlushed() {
+		return flushed;
+	}
+
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	public synchronized long getDiscarded() {
+		return discarded;
+	}
+
+	/**
+	 * Stops sending writes. Pending writes remain in the journal.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			journal.close();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "pending=" + pending.size() + " pendingBytes=" + pendingBytes + " flushed=" + flushed
+				+ " coalesced=" + coalesced + " discarded=" + discarded;
+	}
+
+	/**
+	 * Sends the pending writes in batches until the queue is closed
+	 */
+	protected void flush() {
+		while (true) {
+			Map<String, Write> writes = nextBatch();
+			if (writes == null) {
+				return;
+			}
+
+			boolean failed = false;
+			boolean fenced = false;
+			List<String> sent = new ArrayList<String>();
+			for (Map.Entry<String, Write> write : writes.entrySet()) {
+				if (!writer.isActive()) {
+					fenced = true;
+					break;
+				}
+				try {
+					if (write.getValue().content == null) {
+						writer.delete(write.getKey());
+					} else {
+						writer.write(write.getKey(), write.getValue().content);
+					}
+					sent.add(write.getKey());
+				} catch (IOException e) {
+					failed = true;
+				}
+			}
+
+			synchronized (this) {
+				if (fenced) {
+					discarded += pending.size();
+					pending.clear();
+					pendingBytes = 0;
+				}
+				for (String key : sent) {
+					Write write = pending.get(key);
+					//a write that arrived while sending must still be sent
+					if (write != null && write.content == writes.get(key).content) {
+						pending.remove(key);
+						pendingBytes -= size(write.content);
+						flushed++;
+					}
+				}
+				compact();
+				notifyAll();
+
+				if (failed) {
+					//retry after the lag
+					waitFor(lag);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until a batch is complete or the oldest write has waited the maximum lag
+	 *
+	 * @return the writes of the batch, or null if the queue is closed
+	 */
+	protected synchronized Map<String, Write> nextBatch() {
+		while (!closed) {
+			if (!pending.isEmpty()) {
+				long wait = pending.values().iterator().next().since + lag - System.currentTimeMillis();
+				if (pending.size() >= batch || pendingBytes >= limit || wait <= 0) {
+					break;
+				}
+				waitFor(wait);
+			} else {
+				waitFor(0);
+			}
+		}
+		if (closed) {
+			return null;
+		}
+
+		//copy the contents, as they can be replaced while sending
+		Map<String, Write> writes = new LinkedHashMap<String, Write>();
+		Iterator<Map.Entry<String, Write>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext() && writes.size() < batch) {
+			Map.Entry<String, Write> entry = iterator.next();
+			writes.put(entry.getKey(), new Write(entry.getValue().content, entry.getValue().since));
+		}
+		return writes;
+	}
+
+	/**
+	 * Waits on this queue, ignoring interruptions. Must be called synchronized
+	 */
+	private void waitFor(long time) {
+		try {
+			wait(time);
+		} catch (InterruptedException e) {
+			closed = true;
+		}
+	}
+
+	/**
+	 * Empties the journal if there are no pending writes, or rewrites it if it is much larger
+	 * than the pending writes. Must be called synchronized.
+	 */
+	protected void compact() {
+		try {
+			FileChannel channel = journal.getChannel();
+			if (pending.isEmpty()) {
+				channel.truncate(0);
+				return;
+			}
+			if (channel.size() < Math.max(MIN_COMPACTION, 2 * pendingBytes)) {
+				return;
+			}
+
+			File temp = new File(file.getPath() + ".tmp");
+			RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				out.getChannel().truncate(0);
+				for (Map.Entry<String, Write> write : pending.entrySet()) {
+					append(out.getChannel(), write.getKey(), write.getValue().content);
+				}
+				out.getChannel().force(true);
+			} finally {
+				out.close();
+			}
+
+			//the previous journal is kept open until it is replaced, so writes can go on if this fails
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				temp.delete();
+				throw e;
+			}
+			RandomAccessFile previous = journal;
+			journal = new RandomAccessFile(file, "rw");
+			journal.seek(journal.length());
+			previous.close();
+		} catch (IOException e) {
+			//the journal is still valid, only larger
+		}
+	}
+
+	/**
+	 * Reads the writes in the journal. A record not completely written, because the
+	 * server stopped while writing it, ends the journal.
+	 */
+	protected void recover() throws IOException {
+		FileChannel channel = journal.getChannel();
+		channel.position(0);
+		long valid = 0;
+
+		try {
+			while (true) {
+				ByteBuffer header = read(channel, 12);
+				int nameLength = header.getInt();
+				int length = header.getInt();
+				int checksum = header.getInt();
+				long remaining = channel.size() - channel.position();
+				if (nameLength <= 0 || length < DELETION || (long) nameLength + size(length) > remaining) {
+					break;
+				}
+
+				byte[] name = read(channel, nameLength).array();
+				byte[] content = (length == DELETION) ? null : read(channel, length).array();
+				if (checksum(name, content) != checksum) {
+					break;
+				}
+
+				String key = new String(name, UTF8);
+				Write previous = pending.put(key, new Write(content, System.currentTimeMillis()));
+				if (previous != null) {
+					pendingBytes -= size(previous.content);
+				}
+				pendingBytes += size(content);
+				valid = channel.position();
+			}
+		} catch (EOFException e) {
+			//end of journal
+		}
+
+		//discard incomplete records
+		channel.truncate(valid);
+		channel.position(valid);
+	}
+
+	/**
+	 * Appends a write to a journal. A deletion is recorded with a length of {@link #DELETION}
+	 */
+	protected static void append(FileChannel channel, String key, byte[] content) throws IOException {
+		byte[] name = key.getBytes(UTF8);
+
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putInt(name.length).putInt((content == null) ? DELETION : content.length)
+				.putInt(checksum(name, content));
+		header.flip();
+
+		ByteBuffer[] record = { header, ByteBuffer.wrap(name), ByteBuffer.wrap((content == null) ? new byte[0] : content) };
+		long remaining = header.remaining() + name.length + size(content);
+		channel.position(channel.size());
+		while (remaining > 0) {
+			remaining -= channel.write(record);
+		}
+	}
+
+	protected static int checksum(byte[] name, byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		if (content != null) {
+			crc.update(content);
+		}
+		return (int) crc.getValue();
+	}
+
+	protected static int size(byte[] content) {
+		return (content == null) ? 0 : content.length;
+	}
+
+	protected static int size(int length) {
+		return (length == DELETION) ? 0 : length;
+	}
+
+	private static ByteBuffer read(FileChannel channel, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,519 @@
+package web.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import utils.FileUtils;
+import utils.HashUtils;
+import utils.ObjectInfo;
+
+import dat.core.DAT;
+
+/**
+ * Stores the content of the objects once, named by its hash (SHA-256).
+ *
+ * Objects with the same content share a single file (blob). An index maps the name of
+ * each object to the hash of its content, and counts the objects referencing each blob,
+ * so a blob is deleted with its last object, once the journal record that removes the
+ * object is on disk. Writing content already stored only modifies the index.
+ *
+ * The index is kept in memory and as a journal of the modifications, replayed at
+ * startup and rewritten if most of its records are obsolete. Blobs are written to a
+ * temporary file and renamed when complete, so they are never modified once named.
+ * Blobs not referenced at startup, left by a failure between writing a blob and its
+ * record, are deleted.
+ *
+ * If a {@link GroupCommit} is given, blobs and journal records are flushed to disk
+ * before a write or deletion returns.
+ *
+ */
+public class DedupStorage implements StorageBackend {
+
+	protected static final String BLOB_DIRECTORY = "blobs";
+
+	protected static final String TEMPORARY_DIRECTORY = ".tmp";
+
+	protected static final String JOURNAL = "index";
+
+	protected static final byte PUT = 1;
+
+	protected static final byte DELETE = 2;
+
+	/**
+	 * Object of the index
+	 */
+	protected static class Link {
+
+		protected String hash;
+
+		protected long lastModified;
+
+		protected Link(String hash, long lastModified) {
+			this.hash = hash;
+			this.lastModified = lastModified;
+		}
+	}
+
+	protected static class Blob {
+
+		protected long size;
+
+		/**
+		 * Objects with this content
+		 */
+		protected int references;
+
+		protected Blob(long size) {
+			this.size = size;
+		}
+	}
+
+	protected File directory;
+
+	protected File blobs;
+
+	protected File temporary;
+
+	/**
+	 * Hash of the content of each object, by name. Guarded by this
+	 */
+	protected TreeMap<String, Link> links = new TreeMap<String, Link>();
+
+	/**
+	 * Blobs, by hash. Guarded by this
+	 */
+	protected Map<String, Blob> contents = new HashMap<String, Blob>();
+
+	/**
+	 * Journal of the index. Guarded by this
+	 */
+	protected FileChannel journal;
+
+	/**
+	 * Bytes of content stored once instead of again
+	 */
+	protected long saved;
+
+	protected GroupCommit sync;
+
+	/**
+	 * @param path directory of the store
+	 * @param sync flushes the writes to disk, or null
+	 */
+	public DedupStorage(String path, GroupCommit sync) throws IOException {
+		this.directory = new File(path);
+		this.blobs = new File(path, BLOB_DIRECTORY);
+		this.temporary = new File(path, TEMPORARY_DIRECTORY);
+		this.sync = sync;
+
+		FileUtils.createDirectory(path);
+		FileUtils.createDirectory(blobs.getPath());
+		FileUtils.createDirectory(temporary.getPath());
+		for (File file : temporary.listFiles()) {
+			file.delete();
+		}
+
+		recover();
+	}
+
+	@Override
+	public byte[] read(String object) throws IOException {
+		while (true) {
+			String hash = resolve(object).hash;
+			try {
+				return FileUtils.readBytesFromFile(blobs.getPath(), hash);
+			} catch (FileNotFoundException e) {
+				//the object was modified and its previous blob deleted
+				if (hash.equals(resolve(object).hash)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer read(String object, long position, int length) throws IOException {
+		while (true) {
+			String hash = resolve(object).hash;
+			FileChannel channel;
+			try {
+				channel = FileUtils.openChannel(blobs.getPath(), hash);
+			} catch (FileNotFoundException e) {
+				//the object was modified and its previous blob deleted
+				if (hash.equals(resolve(object).hash)) {
+					throw e;
+				}
+				continue;
+			}
+			try {
+				return FileUtils.readFromChannel(channel, position, length);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	@Override
+	public Region locate(String object) throws IOException {
+		String hash;
+		long size;
+		synchronized (this) {
+			hash = resolve(object).hash;
+			size = contents.get(hash).size;
+		}
+		return new Region(new File(blobs, hash), 0, size);
+	}
+
+	/**
+	 * Only modifies the index if the content is already stored
+	 */
+	@Override
+	public void write(String object, byte[] content) throws IOException {
+		String hash = HashUtils.sha256(content);
+		FileChannel channel = null;
+		String released = null;
+		synchronized (this) {
+			if (contents.containsKey(hash)) {
+				released = link(object, hash, content.length);
+				channel = journal;
+			}
+		}
+		if (channel != null) {
+			commit(channel);
+			collect(released);
+			return;
+		}
+		write(object, new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * Writes the content to a temporary file while hashing it, which is discarded if the
+	 * content is already stored
+	 */
+	@Override
+	public void write(String object, InputStream content) throws IOException {
+		MessageDigest digest = HashUtils.sha256();
+		File file = File.createTempFile("blob", null, temporary);
+		try {
+			long size;
+			FileChannel channel = new FileOutputStream(file).getChannel();
+			try {
+				size = FileUtils.copyStream(new DigestInputStream(content, digest), Channels.newOutputStream(channel));
+				commit(channel);
+			} finally {
+				channel.close();
+			}
+
+			String hash = HashUtils.toHex(digest.digest());
+			String released;
+			synchronized (this) {
+				if (!contents.containsKey(hash)) {
+					Files.move(file.toPath(), new File(blobs, hash).toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}
+				released = link(object, hash, size);
+				channel = journal;
+			}
+			if (sync != null) {
+				sync.commit(blobs.toPath());
+			}
+			commit(channel);
+			collect(released);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Override
+	public void delete(String object) throws IOException {
+		FileChannel channel;
+		String released;
+		synchronized (this) {
+			resolve(object);
+			Link link = links.remove(object);
+			append(DELETE, object, null, 0, 0);
+			released = release(link.hash) ? link.hash : null;
+			channel = journal;
+		}
+		commit(channel);
+		collect(released);
+	}
+
+	@Override
+	public synchronized ObjectInfo stat(String object) {
+		Link link = links.get(object);
+		return (link == null) ? null : new ObjectInfo(object, contents.get(link.hash).size, link.lastModified,
+				link.hash);
+	}
+
+	@Override
+	public synchronized List<ObjectInfo> list() {
+		List<ObjectInfo> objects = new ArrayList<ObjectInfo>(links.size());
+		for (Map.Entry<String, Link> entry : links.entrySet()) {
+			Link link = entry.getValue();
+			objects.add(new ObjectInfo(entry.getKey(), contents.get(link.hash).size, link.lastModified, link.hash));
+		}
+		return objects;
+	}
+
+	@Override
+	public synchronized List<ObjectInfo> list(String after, int limit) {
+		List<ObjectInfo> objects = new ArrayList<ObjectInfo>();
+		for (Map.Entry<String, Link> entry : (after == null) ? links.entrySet() : links.tailMap(after, false).entrySet()) {
+			if (objects.size() >= limit) {
+				break;
+			}
+			Link link = entry.getValue();
+			objects.add(new ObjectInfo(entry.getKey(), contents.get(link.hash).size, link.lastModified, link.hash));
+		}
+		return objects;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (sync != null) {
+			sync.close();
+		}
+		journal.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "dedup at " + directory + ": objects=" + links.size() + " blobs=" + contents.size() + " saved="
+				+ saved + ((sync != null) ? " " + sync : "");
+	}
+
+	/**
+	 * @return the link of an object
+	 * @throws FileNotFoundException if the object is not stored
+	 */
+	protected synchronized Link resolve(String object) throws FileNotFoundException {
+		Link link = links.get(object);
+		if (link == null) {
+			throw new FileNotFoundException("Object " + object + " not found");
+		}
+		return link;
+	}
+
+	/**
+	 * Links an object to a blob, releasing its previous blob. Must be called
+	 * synchronized on this
+	 *
+	 * @return the hash of the previous blob if it has no objects left, to be deleted
+	 *         once the record is on disk, or null
+	 */
+	protected String link(String object, String hash, long size) throws IOException {
+		long now = System.currentTimeMillis();
+		append(PUT, object, hash, size, now);
+
+		Blob blob = contents.get(hash);
+		if (blob == null) {
+			blob = new Blob(size);
+			contents.put(hash, blob);
+		} else {
+			saved += size;
+		}
+		blob.references++;
+
+		Link previous = links.put(object, new Link(hash, now));
+		if (previous != null && release(previous.hash)) {
+			return previous.hash;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a reference to a blob, removing the blob from the index if it was the
+	 * last one. Its file is deleted by {@link #collect(String)}. Must be called
+	 * synchronized on this
+	 *
+	 * @return true if the blob has no objects left
+	 */
+	protected boolean release(String hash) {
+		Blob blob = contents.get(hash);
+		if (--blob.references == 0) {
+			contents.remove(hash);
+			return true;
+		}
+		saved -= blob.size;
+		return false;
+	}
+
+	/**
+	 * Deletes the file of a blob released, once the record which released it is on
+	 * disk, so the journal never references a blob deleted. The blob is kept if it was
+	 * written again meanwhile
+	 *
+	 * @param hash hash of the blob, or null
+	 */
+	protected synchronized void collect(String hash) {
+		if (hash != null && !contents.containsKey(hash)) {
+			new File(blobs, hash).delete();
+		}
+	}
+
+	/**
+	 * Appends a record to the journal, preceded by its length. Must be called 
+	 * synchronized on this
+	 */
+	protected void append(byte operation, String object, String hash, long size, long timestamp) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeInt(0);
+		record.writeByte(operation);
+		record.writeUTF(object);
+		if (operation == PUT) {
+			record.writeUTF(hash);
+			record.writeLong(size);
+			record.writeLong(timestamp);
+		}
+		record.close();
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		buffer.putInt(0, buffer.capacity() - 4);
+		while (buffer.hasRemaining()) {
+			journal.write(buffer);
+		}
+	}
+
+	/**
+	 * Waits until the writes to a file are on disk, if writes are flushed
+	 */
+	protected void commit(FileChannel channel) throws IOException {
+		if (sync != null) {
+			sync.commit(channel);
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the journal, discarding a torn record at its end, and
+	 * deletes the blobs not referenced
+	 */
+	protected synchronized void recover() throws IOException {
+
+		File file = new File(directory, JOURNAL);
+		journal = new RandomAccessFile(file, "rw").getChannel();
+
+		long records = 0;
+		long position = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(journal),
+				FileUtils.BUFFER_SIZE));
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || position + 4 + length > journal.size()) {
+					break;
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+
+				byte operation = record.readByte();
+				String object = record.readUTF();
+				if (operation == PUT) {
+					String hash = record.readUTF();
+					long size = record.readLong();
+					long timestamp = record.readLong();
+
+					Link previous = links.put(object, new Link(hash, timestamp));
+					Blob blob = contents.get(hash);
+					if (blob == null) {
+						blob = new Blob(size);
+						contents.put(hash, blob);
+					}
+					blob.references++;
+					if (previous != null) {
+						contents.get(previous.hash).references--;
+					}
+				} else if (operation == DELETE) {
+					Link previous = links.remove(object);
+					if (previous != null) {
+						contents.get(previous.hash).references--;
+					}
+				} else {
+					break;
+				}
+				position += 4 + length;
+				records++;
+			}
+		} catch (EOFException e) {
+			//torn record at the end of the journal
+		}
+
+		if (position < journal.size()) {
+			DAT.getLog().warn("Discarding " + (journal.size() - position) + " bytes not valid at the end of "
+					+ file);
+			journal.truncate(position);
+		}
+
+		//blobs without objects and the objects without blob
+		for (Map.Entry<String, Link> entry : new ArrayList<Map.Entry<String, Link>>(links.entrySet())) {
+			if (!new File(blobs, entry.getValue().hash).isFile()) {
+				DAT.getLog().warn("Blob of " + entry.getKey() + " not found");
+				links.remove(entry.getKey());
+				contents.get(entry.getValue().hash).references--;
+			}
+		}
+		for (String hash : new ArrayList<String>(contents.keySet())) {
+			Blob blob = contents.get(hash);
+			if (blob.references == 0) {
+				contents.remove(hash);
+			} else {
+				saved += blob.size * (blob.references - 1);
+			}
+		}
+		for (String hash : blobs.list()) {
+			if (!contents.containsKey(hash)) {
+				new File(blobs, hash).delete();
+			}
+		}
+
+		if (records > 2 * links.size()) {
+			rewrite();
+		}
+		journal.position(journal.size());
+	}
+
+	/**
+	 * Replaces the journal with one with a record for each object
+	 */
+	protected void rewrite() throws IOException {
+		File file = new File(directory, JOURNAL);
+		File rewritten = new File(temporary, JOURNAL);
+
+		FileChannel previous = journal;
+		journal = new RandomAccessFile(rewritten, "rw").getChannel();
+		for (Map.Entry<String, Link> entry : links.entrySet()) {
+			Link link = entry.getValue();
+			append(PUT, entry.getKey(), link.hash, contents.get(link.hash).size, link.lastModified);
+		}
+		journal.force(false);
+		journal.close();
+		previous.close();
+
+		Files.move(rewritten.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		journal = new RandomAccessFile(file, "rw").getChannel();
+	}
+}
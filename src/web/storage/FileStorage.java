@@ -0,0 +1,464 @@
+package web.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import utils.FileUtils;
+import utils.HashUtils;
+import utils.ObjectInfo;
+
+import dat.core.DAT;
+
+/**
+ * Stores each object in its own file, named as the object, in a directory.
+ *
+ * The files can be spread over levels of subdirectories (shards), named by the
+ * first bytes of the hash of the name of the object, so no directory grows too
+ * large. With 2 levels, object "a" is stored in "ca/97/a". With 0 levels all the files
+ * are in the directory (flat layout). The files of a directory with another layout
+ * are not found, they must be moved first with {@link #migrate(String, int)}.
+ *
+ * The metadata of the objects (size, time of the last modification and hash of the
+ * content) is kept in memory, read from the files at startup, so checking an object
+ * or listing them doesn't access the files. The hash is kept in an extended attribute
+ * of the file ({@link #HASH_ATTRIBUTE}) with the size and time of last modification of
+ * the content it was computed for, so a file modified afterwards has no known hash. In
+ * file systems without extended attributes, the hash is only known for the objects
+ * written since startup.
+ *
+ * Objects are written to a temporary file which then replaces the file of the object,
+ * so a failure while writing leaves the previous content. If a {@link GroupCommit}
+ * is given, the content and the replacement are flushed to disk before a write or
+ * deletion returns.
+ *
+ */
+public class FileStorage implements StorageBackend {
+
+	public static final int DEFAULT_SHARDS = 0;
+
+	protected static final String TEMPORARY_DIRECTORY = ".tmp";
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Extended attribute with the hash of the content, its size and time of last
+	 * modification, separated by spaces
+	 */
+	public static final String HASH_ATTRIBUTE = "sha256";
+
+	protected String path;
+
+	/**
+	 * Levels of subdirectories
+	 */
+	protected int shards;
+
+	/**
+	 * Directory of the files being written, in the same file system as the objects
+	 */
+	protected File temporary;
+
+	/**
+	 * Flushes the files to disk. Null if they are not flushed
+	 */
+	protected GroupCommit sync;
+
+	/**
+	 * Metadata of the objects stored, by name
+	 */
+	protected ConcurrentNavigableMap<String, ObjectInfo> index = new ConcurrentSkipListMap<String, ObjectInfo>();
+
+	public FileStorage(String path) throws IOException {
+		this(path, DEFAULT_SHARDS, null);
+	}
+
+	public FileStorage(String path, GroupCommit sync) throws IOException {
+		this(path, DEFAULT_SHARDS, sync);
+	}
+
+	/**
+	 * @param path directory of the objects
+	 * @param shards levels of subdirectories, up to 32
+	 * @param sync flushes the files written to disk, or null
+	 */
+	public FileStorage(String path, int shards, GroupCommit sync) throws IOException {
+		if (shards < 0 || shards > 32) {
+			throw new IllegalArgumentException("Invalid number of shards " + shards);
+		}
+		this.path = path;
+		this.shards = shards;
+		this.sync = sync;
+		FileUtils.createDirectory(path);
+
+		//discard the files of writes not completed
+		this.temporary = new File(path, TEMPORARY_DIRECTORY);
+		FileUtils.createDirectory(temporary.getPath());
+		for (File file : temporary.listFiles()) {
+			file.delete();
+		}
+
+		load();
+	}
+
+	/**
+	 * @return the file of an object in a layout
+	 */
+	protected static File getFile(String path, int shards, String object) {
+		if (shards == 0) {
+			return new File(path + File.separator + object);
+		}
+		String hash = HashUtils.sha256(object.getBytes(UTF8));
+		StringBuilder file = new StringBuilder(path);
+		for (int i = 0; i < shards; i++) {
+			file.append(File.separator).append(hash, 2 * i, 2 * i + 2);
+		}
+		return new File(file.append(File.separator).append(object).toString());
+	}
+
+	protected File getFile(String object) {
+		return getFile(path, shards, object);
+	}
+
+	@Override
+	public byte[] read(String object) throws IOException {
+		return FileUtils.readBytesFromFile(getFile(lookup(object)).getPath());
+	}
+
+	@Override
+	public ByteBuffer read(String object, long position, int length) throws IOException {
+		File file = getFile(lookup(object));
+		FileChannel channel = FileUtils.openChannel(file.getParent(), file.getName());
+		try {
+			return FileUtils.readFromChannel(channel, position, length);
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public Region locate(String object) throws IOException {
+		File file = getFile(lookup(object));
+		return new Region(file, 0, file.length());
+	}
+
+	@Override
+	public void write(String object, byte[] content) throws IOException {
+		File file = File.createTempFile("object", null, temporary);
+		try {
+			String hash;
+			FileChannel channel = new FileOutputStream(file).getChannel();
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(content);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				hash = HashUtils.sha256(content);
+				saveHash(file, content.length, hash);
+				commit(channel);
+			} finally {
+				channel.close();
+			}
+			replace(file, object, content.length, hash);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Override
+	public void write(String object, InputStream content) throws IOException {
+		MessageDigest digest = HashUtils.sha256();
+		File file = File.createTempFile("object", null, temporary);
+		try {
+			long size;
+			String hash;
+			FileChannel channel = new FileOutputStream(file).getChannel();
+			try {
+				size = FileUtils.copyStream(new DigestInputStream(content, digest), Channels.newOutputStream(channel));
+				hash = HashUtils.toHex(digest.digest());
+				saveHash(file, size, hash);
+				commit(channel);
+			} finally {
+				channel.close();
+			}
+			replace(file, object, size, hash);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Override
+	public void delete(String object) throws IOException {
+		File file = getFile(lookup(object));
+		FileUtils.deleteFile(file.getPath());
+		index.remove(object);
+		if (sync != null) {
+			sync.commit(file.getParentFile().toPath());
+		}
+	}
+
+	/**
+	 * Replaces the file of an object with a file written completely
+	 */
+	protected void replace(File file, String object, long size, String hash) throws IOException {
+		File target = getFile(object);
+		File directory = target.getParentFile();
+		if (shards > 0 && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			throw new IOException("Can't create directory " + directory);
+		}
+		try {
+			Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException("Invalid object " + object);
+		}
+		index.put(object, new ObjectInfo(object, size, target.lastModified(), hash));
+
+		if (sync != null) {
+			//the directories created must be flushed too
+			for (int i = 0; i <= shards; i++) {
+				sync.commit(directory.toPath());
+				directory = directory.getParentFile();
+			}
+		}
+	}
+
+	protected void commit(FileChannel channel) throws IOException {
+		if (sync != null) {
+			sync.commit(channel);
+		}
+	}
+
+	/**
+	 * Keeps the hash of a file written completely in its extended attribute, if the
+	 * file system supports it. The attribute is kept when the file is moved.
+	 */
+	protected static void saveHash(File file, long size, String hash) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+				UserDefinedFileAttributeView.class);
+		if (view == null) {
+			return;
+		}
+		try {
+			long lastModified = Files.getLastModifiedTime(file.toPath()).toMillis();
+			view.write(HASH_ATTRIBUTE, UTF8.encode(hash + " " + size + " " + lastModified));
+		} catch (IOException e) {
+			//not supported, the hash is computed again after restarting
+		} catch (UnsupportedOperationException e) {
+			//not supported either
+		}
+	}
+
+	/**
+	 * @return the hash kept in the extended attribute of a file, or null if there is
+	 *         none or the file was modified after computing it
+	 */
+	protected static String loadHash(Path file, BasicFileAttributes attributes) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+		if (view == null) {
+			return null;
+		}
+		try {
+			ByteBuffer value = ByteBuffer.allocate(view.size(HASH_ATTRIBUTE));
+			view.read(HASH_ATTRIBUTE, value);
+			value.flip();
+			String[] fields = UTF8.decode(value).toString().split(" ");
+			if (fields.length == 3 && Long.parseLong(fields[1]) == attributes.size()
+					&& Long.parseLong(fields[2]) == attributes.lastModifiedTime().toMillis()) {
+				return fields[0];
+			}
+		} catch (IOException e) {
+			//no attribute
+		} catch (UnsupportedOperationException e) {
+			//no attributes in the file system
+		} catch (NumberFormatException e) {
+			//not written by the storage
+		}
+		return null;
+	}
+
+	/**
+	 * @return the name of an object
+	 * @throws FileNotFoundException if the object is not stored
+	 */
+	protected String lookup(String object) throws FileNotFoundException {
+		if (!index.containsKey(object)) {
+			throw new FileNotFoundException("Object " + object + " not found");
+		}
+		return object;
+	}
+
+	@Override
+	public ObjectInfo stat(String object) {
+		return index.get(object);
+	}
+
+	@Override
+	public List<ObjectInfo> list() {
+		return new ArrayList<ObjectInfo>(index.values());
+	}
+
+	@Override
+	public List<ObjectInfo> list(String after, int limit) {
+		List<ObjectInfo> objects = new ArrayList<ObjectInfo>();
+		for (ObjectInfo info : (after == null) ? index.values() : index.tailMap(after, false).values()) {
+			if (objects.size() >= limit) {
+				break;
+			}
+			objects.add(info);
+		}
+		return objects;
+	}
+
+	@Override
+	public void close() {
+		if (sync != null) {
+			sync.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "files at " + path + ": objects=" + index.size() + " shards=" + shards
+				+ ((sync != null) ? " " + sync : "");
+	}
+
+	/**
+	 * Reads the metadata of the files in the layout
+	 */
+	protected void load() throws IOException {
+		final List<String> misplaced = new ArrayList<String>();
+		final Path root = new File(path).toPath();
+		walk(path, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				String object = getObject(root, file);
+				if (getFile(object).toPath().equals(file)) {
+					index.put(object, new ObjectInfo(object, attributes.size(), attributes.lastModifiedTime().toMillis(),
+							loadHash(file, attributes)));
+				} else {
+					misplaced.add(object);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		if (!misplaced.isEmpty()) {
+			DAT.getLog().warn(misplaced.size() + " files of " + path + " not in a layout of " + shards
+					+ " levels, migrate them to be found");
+		}
+	}
+
+	/**
+	 * Finds the name of the object stored in a file, in any layout. The names can
+	 * contain separators, so the object "a/b" of the flat layout is in the subdirectory
+	 * "a". The subdirectories are taken as levels of a layout only if they are named as
+	 * the levels of the object in the rest of the path.
+	 *
+	 * @param root directory of the objects
+	 * @param file file of an object, in the directory or its subdirectories
+	 */
+	protected static String getObject(Path root, Path file) {
+		Path relative = root.relativize(file);
+		String directory = root.toString();
+		for (int levels = Math.min(relative.getNameCount() - 1, 32); levels > 0; levels--) {
+			String object = relative.subpath(levels, relative.getNameCount()).toString();
+			if (getFile(directory, levels, object).toPath().equals(file)) {
+				return object;
+			}
+		}
+		return relative.toString();
+	}
+
+	/**
+	 * Visits the files of a directory of objects and its subdirectories, except the
+	 * files being written
+	 */
+	protected static void walk(String path, final SimpleFileVisitor<Path> visitor) throws IOException {
+		final Path temporary = new File(path, TEMPORARY_DIRECTORY).toPath();
+		Files.walkFileTree(new File(path).toPath(), new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+				return directory.equals(temporary) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				return attributes.isRegularFile() ? visitor.visitFile(file, attributes) : FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Moves the files of a directory of objects to a layout, from any other layout.
+	 * The directory must not be in use.
+	 *
+	 * @param path directory of the objects
+	 * @param shards levels of subdirectories of the layout
+	 * @return the number of files moved
+	 */
+	public static long migrate(final String path, final int shards) throws IOException {
+
+		final List<Path> files = new ArrayList<Path>();
+		walk(path, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		final Path root = new File(path).toPath();
+		long moved = 0;
+		for (Path file : files) {
+			File target = getFile(path, shards, getObject(root, file));
+			if (target.toPath().equals(file)) {
+				continue;
+			}
+			File directory = target.getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can't create directory " + directory);
+			}
+			Files.move(file, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			moved++;
+		}
+
+		//remove the directories of the previous layout left empty
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				String[] entries = directory.toFile().list();
+				if (!directory.equals(root) && entries != null && entries.length == 0
+						&& !directory.getFileName().toString().equals(TEMPORARY_DIRECTORY)) {
+					Files.delete(directory);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return moved;
+	}
+}
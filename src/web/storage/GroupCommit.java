@@ -0,0 +1,221 @@
+package web.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Flushes files to disk in groups.
+ *
+ * Writers ask for their files to be flushed and wait until they are. A single thread
+ * flushes the files of all the writers waiting at once, so concurrent writers share
+ * the cost of each flush: when many of them write to the same file, it is flushed once.
+ * The thread waits for more writers up to a maximum latency after the first one, or
+ * until there are enough writers to fill a batch. Meanwhile a group is being flushed,
+ * the next one gathers the writers that arrive.
+ *
+ */
+public class GroupCommit {
+
+	/**
+	 * Maximum time to wait for writers before flushing a group, in milliseconds
+	 */
+	public static final long DEFAULT_MAX_LATENCY = 2;
+
+	public static final int DEFAULT_MAX_BATCH = 64;
+
+	/**
+	 * Writers flushed together
+	 */
+	protected static class Batch {
+
+		protected Set<FileChannel> files = new LinkedHashSet<FileChannel>();
+
+		protected Set<Path> directories = new LinkedHashSet<Path>();
+
+		protected int writers;
+
+		protected boolean done;
+
+		/**
+		 * Failure to flush each file or directory which couldn't be flushed
+		 */
+		protected Map<Object, IOException> failures = new HashMap<Object, IOException>();
+	}
+
+	protected long maxLatency;
+
+	protected int maxBatch;
+
+	/**
+	 * Batch gathering writers. Guarded by this
+	 */
+	protected Batch current = new Batch();
+
+	protected boolean closed;
+
+	protected Thread flusher;
+
+	protected long flushes;
+
+	protected long commits;
+
+	/**
+	 * @param maxLatency maximum time to wait for writers before flushing, in milliseconds
+	 * @param maxBatch number of writers which are flushed without waiting more
+	 */
+	public GroupCommit(long maxLatency, int maxBatch) {
+		this.maxLatency = maxLatency;
+		this.maxBatch = Math.max(1, maxBatch);
+
+		flusher = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "group-commit");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Waits until the content written to a file is on disk. The file must not be closed
+	 * until this returns: a file closed before being flushed fails the commit.
+	 */
+	public void commit(FileChannel file) throws IOException {
+		commit(file, null);
+	}
+
+	/**
+	 * Waits until the entries of a directory (files created, renamed or deleted) are on disk
+	 */
+	public void commit(Path directory) throws IOException {
+		commit(null, directory);
+	}
+
+	protected synchronized void commit(FileChannel file, Path directory) throws IOException {
+
+		if (closed) {
+			throw new IOException("Group commit closed");
+		}
+
+		Batch batch = current;
+		if (file != null) {
+			batch.files.add(file);
+		}
+		if (directory != null) {
+			batch.directories.add(directory);
+		}
+		batch.writers++;
+		if (batch.writers == 1 || batch.writers >= maxBatch) {
+			notifyAll();
+		}
+
+		while (!batch.done) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for flush");
+			}
+		}
+
+		IOException failure = batch.failures.get((file != null) ? file : directory);
+		if (failure != null) {
+			throw new IOException("Unable to flush to disk", failure);
+		}
+	}
+
+	/**
+	 * Flushes the writers waiting and stops flushing
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "commits=" + commits + " flushes=" + flushes;
+	}
+
+	/**
+	 * Flushes the batches until closed
+	 */
+	protected void flush() {
+		while (true) {
+			Batch batch;
+			synchronized (this) {
+				while (current.writers == 0 && !closed) {
+					waitFor(0);
+				}
+				if (current.writers == 0) {
+					return;
+				}
+
+				long deadline = System.currentTimeMillis() + maxLatency;
+				long remaining = maxLatency;
+				while (current.writers < maxBatch && !closed && remaining > 0) {
+					waitFor(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+
+				batch = current;
+				current = new Batch();
+			}
+
+			//a failure is reported only to the writers of the file or directory, a file
+			//closed before being flushed (ClosedChannelException) is not on disk either
+			Map<Object, IOException> failures = new HashMap<Object, IOException>();
+			for (FileChannel file : batch.files) {
+				try {
+					file.force(false);
+				} catch (IOException e) {
+					failures.put(file, e);
+				}
+			}
+			for (Path directory : batch.directories) {
+				try {
+					sync(directory);
+				} catch (IOException e) {
+					failures.put(directory, e);
+				}
+			}
+
+			synchronized (this) {
+				batch.failures = failures;
+				batch.done = true;
+				flushes++;
+				commits += batch.writers;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the entries of a directory to disk
+	 */
+	public static void sync(Path directory) throws IOException {
+		FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void waitFor(long time) {
+		try {
+			wait(time);
+		} catch (InterruptedException e) {
+			//keep flushing until closed
+		}
+	}
+}
@@ -0,0 +1,947 @@
+package web.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import utils.FileUtils;
+import utils.ObjectInfo;
+
+import dat.core.DAT;
+
+/**
+ * Log structured storage, in the style of Bitcask.
+ *
+ * The objects are appended as records to a log split in segments of about a maximum
+ * size. Only the last segment (the active one) is written. Each record has a checksum,
+ * the time of the modification, the name of the object and its content. A deletion
+ * appends a record without content (tombstone). An index in memory keeps the location
+ * of the last record of each object, so reading an object takes a single positional read.
+ *
+ * When a segment is closed, a hint file with the location of its records is written
+ * next to it. At startup the index is rebuilt from the hint files, scanning only the
+ * segments without one. A record torn by a crash at the end of the last segment is
+ * discarded.
+ *
+ * Replaced and deleted records are garbage. Periodically, the closed segments with a
+ * fraction of garbage of at least the compaction ratio are compacted: their live
+ * records are appended again to the active segment and the segment is deleted.
+ * Deletions are kept while there are older segments, which may hold previous records
+ * of the object.
+ *
+ * Closed segments, their hint files and the records copied by compaction are flushed
+ * to disk. If a {@link GroupCommit} is given, each write or deletion is flushed before
+ * it returns, sharing the flush with the concurrent ones.
+ *
+ */
+public class LogStorage implements StorageBackend {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+	/**
+	 * Time between compactions, in seconds
+	 */
+	public static final long DEFAULT_COMPACTION_PERIOD = 60;
+
+	protected static final String LOG_SUFFIX = ".log";
+
+	protected static final String HINT_SUFFIX = ".hint";
+
+	/**
+	 * Size of the header of a record: checksum, time, length of the name and length
+	 * of the content
+	 */
+	protected static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+
+	/**
+	 * Length of the content of a deletion
+	 */
+	protected static final int TOMBSTONE = -1;
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A record of a segment, as kept in the hint files
+	 */
+	protected static class Record {
+
+		protected String key;
+
+		protected int keyLength;
+
+		protected long timestamp;
+
+		/**
+		 * Position of the content in the segment
+		 */
+		protected long offset;
+
+		/**
+		 * Length of the content, or {@link LogStorage#TOMBSTONE}
+		 */
+		protected int length;
+
+		protected Record(String key, int keyLength, long timestamp, long offset, int length) {
+			this.key = key;
+			this.keyLength = keyLength;
+			this.timestamp = timestamp;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return the bytes of the record in the segment
+		 */
+		protected int size() {
+			return HEADER_SIZE + keyLength + Math.max(0, length);
+		}
+	}
+
+	protected static class Segment {
+
+		protected int id;
+
+		protected File file;
+
+		protected FileChannel channel;
+
+		/**
+		 * Bytes written
+		 */
+		protected long size;
+
+		/**
+		 * Bytes of the records in the index. Guarded by the lock
+		 */
+		protected long live;
+
+		/**
+		 * Records of the active segment, written to its hint file when closed.
+		 * Null once closed
+		 */
+		protected List<Record> records;
+	}
+
+	/**
+	 * Last record of an object
+	 */
+	protected static class Entry {
+
+		protected Segment segment;
+
+		protected Record record;
+
+		protected Entry(Segment segment, Record record) {
+			this.segment = segment;
+			this.record = record;
+		}
+	}
+
+	protected File directory;
+
+	protected long segmentSize;
+
+	protected double compactionRatio;
+
+	/**
+	 * Segments, by id. Guarded by the lock
+	 */
+	protected TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	/**
+	 * Last record of each object, by name. Guarded by the lock
+	 */
+	protected TreeMap<String, Entry> index = new TreeMap<String, Entry>();
+
+	protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Serializes the appends to the active segment
+	 */
+	protected Object appendLock = new Object();
+
+	/**
+	 * Segment being written. Guarded by the append lock
+	 */
+	protected Segment active;
+
+	protected Timer compactor;
+
+	/**
+	 * Flushes the active segment to disk. Null if writes are not flushed
+	 */
+	protected GroupCommit sync;
+
+	protected long compactions;
+
+	/**
+	 * Opens the log in a directory, rebuilding the index
+	 *
+	 * @param path directory of the segments
+	 * @param segmentSize maximum size of a segment
+	 * @param compactionRatio minimum fraction of garbage of a segment to compact it
+	 * @param compactionPeriod seconds between compactions. If 0, segments are not compacted
+	 * @param sync flushes the writes to disk, or null
+	 */
+	public LogStorage(String path, long segmentSize, double compactionRatio, long compactionPeriod,
+			GroupCommit sync) throws IOException {
+		FileUtils.createDirectory(path);
+		this.directory = new File(path);
+		this.segmentSize = segmentSize;
+		this.compactionRatio = compactionRatio;
+		this.sync = sync;
+
+		recover();
+
+		if (compactionPeriod > 0) {
+			compactor = new Timer("log-compaction", true);
+			compactor.schedule(new TimerTask() {
+
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						DAT.getLog().warn("unable to compact log at " + directory, e);
+					}
+				}
+			}, compactionPeriod * 1000, compactionPeriod * 1000);
+		}
+	}
+
+	@Override
+	public byte[] read(String object) throws IOException {
+		while (true) {
+			Entry entry = lookup(object);
+			try {
+				ByteBuffer content = FileUtils.readFromChannel(entry.segment.channel, entry.record.offset,
+						entry.record.length);
+				if (content.remaining() < entry.record.length) {
+					throw new IOException("Record of " + object + " truncated in " + entry.segment.file);
+				}
+				return content.array();
+			} catch (ClosedChannelException e) {
+				moved(object, entry, e);
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer read(String object, long position, int length) throws IOException {
+		while (true) {
+			Entry entry = lookup(object);
+			long available = Math.max(0, entry.record.length - position);
+			try {
+				return FileUtils.readFromChannel(entry.segment.channel, entry.record.offset + position,
+						(int) Math.min(length, available));
+			} catch (ClosedChannelException e) {
+				moved(object, entry, e);
+			}
+		}
+	}
+
+	/**
+	 * Checks that the segment of an object was closed because the object was moved by
+	 * a compaction, so it can be read again from its new record
+	 *
+	 * @throws ClosedChannelException if the object is still in the closed segment
+	 */
+	protected void moved(String object, Entry entry, ClosedChannelException e) throws IOException {
+		if (lookup(object) == entry) {
+			throw e;
+		}
+	}
+
+	@Override
+	public Region locate(String object) throws IOException {
+		Entry entry = lookup(object);
+		return new Region(entry.segment.file, entry.record.offset, entry.record.length);
+	}
+
+	@Override
+	public void write(String object, byte[] content) throws IOException {
+		FileChannel channel;
+		synchronized (appendLock) {
+			Record record = append(object, content, System.currentTimeMillis());
+			update(active, record);
+			channel = active.channel;
+		}
+		commit(channel);
+	}
+
+	/**
+	 * Appends the content as it is read, without keeping it in memory. Other writes
+	 * wait until the content is read.
+	 */
+	@Override
+	public void write(String object, InputStream content) throws IOException {
+		FileChannel channel;
+		synchronized (appendLock) {
+			Record record = appendStream(object, content, System.currentTimeMillis());
+			update(active, record);
+			channel = active.channel;
+		}
+		commit(channel);
+	}
+
+	@Override
+	public void delete(String object) throws IOException {
+		FileChannel channel;
+		synchronized (appendLock) {
+			lookup(object);
+			Record record = append(object, null, System.currentTimeMillis());
+			update(active, record);
+			channel = active.channel;
+		}
+		commit(channel);
+	}
+
+	@Override
+	public ObjectInfo stat(String object) {
+		lock.readLock().lock();
+		try {
+			Entry entry = index.get(object);
+			return (entry == null) ? null : new ObjectInfo(object, entry.record.length, entry.record.timestamp);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ObjectInfo> list() {
+		lock.readLock().lock();
+		try {
+			List<ObjectInfo> objects = new ArrayList<ObjectInfo>(index.size());
+			for (Entry entry : index.values()) {
+				objects.add(new ObjectInfo(entry.record.key, entry.record.length, entry.record.timestamp));
+			}
+			return objects;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ObjectInfo> list(String after, int limit) {
+		lock.readLock().lock();
+		try {
+			List<ObjectInfo> objects = new ArrayList<ObjectInfo>();
+			for (Entry entry : (after == null) ? index.values() : index.tailMap(after, false).values()) {
+				if (objects.size() >= limit) {
+					break;
+				}
+				objects.add(new ObjectInfo(entry.record.key, entry.record.length, entry.record.timestamp));
+			}
+			return objects;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (compactor != null) {
+			compactor.cancel();
+		}
+		if (sync != null) {
+			sync.close();
+		}
+		synchronized (appendLock) {
+			lock.writeLock().lock();
+			try {
+				for (Segment segment : segments.values()) {
+					segment.channel.close();
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Compacts the closed segments with enough garbage
+	 */
+	public void compact() throws IOException {
+
+		int activeId;
+		synchronized (appendLock) {
+			activeId = active.id;
+		}
+
+		List<Segment> candidates = new ArrayList<Segment>();
+		lock.readLock().lock();
+		try {
+			for (Segment segment : segments.headMap(activeId).values()) {
+				if (segment.size > 0 && segment.size - segment.live >= compactionRatio * segment.size) {
+					candidates.add(segment);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		for (Segment segment : candidates) {
+			compact(segment);
+		}
+	}
+
+	/**
+	 * Appends the live records of a closed segment to the active one and deletes it
+	 */
+	protected void compact(Segment segment) throws IOException {
+
+		File hint = getHintFile(segment.id);
+		List<Record> records = hint.exists() ? readHint(hint) : scan(segment, false);
+
+		boolean oldest;
+		lock.readLock().lock();
+		try {
+			oldest = segments.firstKey() == segment.id;
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		for (Record record : records) {
+			if (record.length == TOMBSTONE) {
+				//the deletion is only needed if previous records can be in older segments
+				synchronized (appendLock) {
+					if (!oldest && !isStored(record.key)) {
+						append(record.key, null, record.timestamp);
+					}
+				}
+				continue;
+			}
+
+			if (!isLive(segment, record)) {
+				continue;
+			}
+			ByteBuffer content = FileUtils.readFromChannel(segment.channel, record.offset, record.length);
+			synchronized (appendLock) {
+				//the object may have been modified meanwhile
+				if (isLive(segment, record)) {
+					//the record may be appended to a new segment
+					Record copy = append(record.key, content.array(), record.timestamp);
+					update(active, copy);
+				}
+			}
+		}
+
+		//the copies must be on disk before the segment is deleted
+		FileChannel channel;
+		synchronized (appendLock) {
+			channel = active.channel;
+		}
+		channel.force(false);
+
+		lock.writeLock().lock();
+		try {
+			segments.remove(segment.id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		segment.channel.close();
+		segment.file.delete();
+		hint.delete();
+		compactions++;
+	}
+
+	@Override
+	public String toString() {
+		lock.readLock().lock();
+		try {
+			return "log at " + directory + ": objects=" + index.size() + " segments=" + segments.size()
+					+ " compactions=" + compactions + ((sync != null) ? " " + sync : "");
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the last record of an object
+	 * @throws FileNotFoundException if the object is not stored
+	 */
+	protected Entry lookup(String object) throws FileNotFoundException {
+		lock.readLock().lock();
+		try {
+			Entry entry = index.get(object);
+			if (entry == null) {
+				throw new FileNotFoundException("Object " + object + " not found");
+			}
+			return entry;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	protected boolean isStored(String object) {
+		lock.readLock().lock();
+		try {
+			return index.containsKey(object);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if a record of a segment is the last record of its object
+	 */
+	protected boolean isLive(Segment segment, Record record) {
+		lock.readLock().lock();
+		try {
+			Entry entry = index.get(record.key);
+			return entry != null && entry.segment == segment && entry.record.offset == record.offset;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment, closing it first if the record doesn't fit.
+	 * Must be called synchronized on the append lock
+	 *
+	 * @param content content of the object, or null for a deletion
+	 * @return the record appended
+	 */
+	protected Record append(String key, byte[] content, long timestamp) throws IOException {
+
+		byte[] name = key.getBytes(UTF8);
+		int length = (content == null) ? TOMBSTONE : content.length;
+		Record record = new Record(key, name.length, timestamp, 0, length);
+
+		if (active.size > 0 && active.size + record.size() > segmentSize) {
+			rotate();
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + name.length);
+		header.putInt(0);
+		header.putLong(timestamp);
+		header.putInt(name.length);
+		header.putInt(length);
+		header.put(name);
+
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 4, header.capacity() - 4);
+		if (content != null) {
+			crc.update(content);
+		}
+		header.putInt(0, (int) crc.getValue());
+		header.flip();
+
+		long position = active.size;
+		write(active.channel, header, position);
+		if (content != null) {
+			write(active.channel, ByteBuffer.wrap(content), position + header.capacity());
+		}
+
+		record.offset = position + header.capacity();
+		active.size += record.size();
+		active.records.add(record);
+		return record;
+	}
+
+	/**
+	 * Appends a record with the content read from a stream to the active segment. The
+	 * content is written as it is read, after the space of the header, and the header is
+	 * written once the length and the checksum of the content are known. As the length
+	 * is not known in advance, the segment is closed first only if it is already full.
+	 * Must be called synchronized on the append lock
+	 *
+	 * @return the record appended
+	 */
+	protected Record appendStream(String key, InputStream content, long timestamp) throws IOException {
+
+		byte[] name = key.getBytes(UTF8);
+		if (active.size > 0 && active.size + HEADER_SIZE + name.length >= segmentSize) {
+			rotate();
+		}
+
+		long position = active.size;
+		long offset = position + HEADER_SIZE + name.length;
+		CRC32 crc = new CRC32();
+		long length = 0;
+		try {
+			byte[] buffer = new byte[FileUtils.BUFFER_SIZE];
+			int read;
+			while ((read = content.read(buffer)) != -1) {
+				if (length + read > Integer.MAX_VALUE) {
+					throw new IOException("Content of " + key + " too large for a record");
+				}
+				crc.update(buffer, 0, read);
+				write(active.channel, ByteBuffer.wrap(buffer, 0, read), offset + length);
+				length += read;
+			}
+		} catch (IOException e) {
+			//discard the content written, the record doesn't exist yet
+			active.channel.truncate(position);
+			throw e;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + name.length);
+		header.putInt(0);
+		header.putLong(timestamp);
+		header.putInt(name.length);
+		header.putInt((int) length);
+		header.put(name);
+
+		CRC32 headerCrc = new CRC32();
+		headerCrc.update(header.array(), 4, header.capacity() - 4);
+		header.putInt(0, (int) combine(headerCrc.getValue(), crc.getValue(), length));
+		header.flip();
+		write(active.channel, header, position);
+
+		Record record = new Record(key, name.length, timestamp, offset, (int) length);
+		active.size += record.size();
+		active.records.add(record);
+		return record;
+	}
+
+	/**
+	 * Combines the CRC-32 of two consecutive blocks, as zlib's crc32_combine
+	 *
+	 * @param crc1 checksum of the first block
+	 * @param crc2 checksum of the second block
+	 * @param length2 length of the second block
+	 * @return the checksum of both blocks
+	 */
+	private static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+
+		//operator for one zero bit, then for two and four bits
+		long[] odd = new long[32];
+		long[] even = new long[32];
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+
+		//apply the operator for each bit of the length in zero bytes
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * Makes a record the last one of its object
+	 */
+	protected void update(Segment segment, Record record) {
+		lock.writeLock().lock();
+		try {
+			Entry previous;
+			if (record.length == TOMBSTONE) {
+				previous = index.remove(record.key);
+			} else {
+				previous = index.put(record.key, new Entry(segment, record));
+				segment.live += record.size();
+			}
+			if (previous != null) {
+				previous.segment.live -= previous.record.size();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Closes the active segment, writing its hint file, and starts a new one. Must be
+	 * called synchronized on the append lock
+	 */
+	protected void rotate() throws IOException {
+		active.channel.force(false);
+		writeHint(active);
+		active.records = null;
+
+		Segment segment = openSegment(active.id + 1);
+		lock.writeLock().lock();
+		try {
+			segments.put(segment.id, segment);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		active = segment;
+	}
+
+	/**
+	 * Rebuilds the index from the segments in the directory
+	 */
+	protected void recover() throws IOException {
+
+		String[] names = directory.list(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(LOG_SUFFIX);
+			}
+		});
+		int[] ids = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			ids[i] = Integer.parseInt(names[i].substring(0, names[i].length() - LOG_SUFFIX.length()));
+		}
+		Arrays.sort(ids);
+
+		synchronized (appendLock) {
+			for (int i = 0; i < ids.length; i++) {
+				Segment segment = openSegment(ids[i]);
+				File hint = getHintFile(segment.id);
+				boolean last = (i == ids.length - 1);
+
+				List<Record> records = hint.exists() ? readHint(hint) : scan(segment, last);
+				for (Record record : records) {
+					update(segment, record);
+				}
+				segments.put(segment.id, segment);
+
+				//a segment without hint file was being written
+				if (last && !hint.exists()) {
+					segment.records = records;
+					active = segment;
+				}
+			}
+
+			if (active == null) {
+				active = openSegment(ids.length == 0 ? 0 : ids[ids.length - 1] + 1);
+				segments.put(active.id, active);
+			}
+		}
+	}
+
+	protected Segment openSegment(int id) throws IOException {
+		Segment segment = new Segment();
+		segment.id = id;
+		segment.file = new File(directory, String.format("%010d", id) + LOG_SUFFIX);
+		segment.channel = new RandomAccessFile(segment.file, "rw").getChannel();
+		segment.size = segment.channel.size();
+		segment.records = new ArrayList<Record>();
+		return segment;
+	}
+
+	protected File getHintFile(int id) {
+		return new File(directory, String.format("%010d", id) + HINT_SUFFIX);
+	}
+
+	/**
+	 * Reads the records of a segment, checking their checksum. The segment ends at the
+	 * first record not valid.
+	 *
+	 * @param truncate if true, the segment is truncated after its last valid record
+	 */
+	protected List<Record> scan(Segment segment, boolean truncate) throws IOException {
+
+		List<Record> records = new ArrayList<Record>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(segment.channel.position(0)), FileUtils.BUFFER_SIZE));
+		byte[] buffer = new byte[FileUtils.BUFFER_SIZE];
+
+		long position = 0;
+		try {
+			while (position + HEADER_SIZE <= segment.size) {
+				int checksum = in.readInt();
+				long timestamp = in.readLong();
+				int keyLength = in.readInt();
+				int length = in.readInt();
+				if (keyLength < 0 || length < TOMBSTONE
+						|| position + HEADER_SIZE + keyLength + Math.max(0, length) > segment.size) {
+					break;
+				}
+
+				byte[] name = new byte[keyLength];
+				in.readFully(name);
+
+				CRC32 crc = new CRC32();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 4);
+				header.putLong(timestamp).putInt(keyLength).putInt(length);
+				crc.update(header.array());
+				crc.update(name);
+				for (int remaining = Math.max(0, length); remaining > 0;) {
+					int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+					if (read == -1) {
+						throw new EOFException();
+					}
+					crc.update(buffer, 0, read);
+					remaining -= read;
+				}
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				Record record = new Record(new String(name, UTF8), keyLength, timestamp,
+						position + HEADER_SIZE + keyLength, length);
+				records.add(record);
+				position += record.size();
+			}
+		} catch (EOFException e) {
+			//torn record at the end of the segment
+		}
+
+		if (position < segment.size) {
+			DAT.getLog().warn("Discarding " + (segment.size - position) + " bytes not valid at the end of "
+					+ segment.file);
+			if (truncate) {
+				segment.channel.truncate(position);
+				segment.size = position;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Writes the hint file of a segment. The file is written as a whole or not written
+	 */
+	protected void writeHint(Segment segment) throws IOException {
+		File hint = getHintFile(segment.id);
+		File temporary = new File(hint.getPath() + ".tmp");
+
+		FileOutputStream file = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, FileUtils.BUFFER_SIZE));
+		try {
+			for (Record record : segment.records) {
+				byte[] name = record.key.getBytes(UTF8);
+				out.writeLong(record.timestamp);
+				out.writeInt(name.length);
+				out.writeInt(record.length);
+				out.writeLong(record.offset);
+				out.write(name);
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temporary.toPath(), hint.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	protected List<Record> readHint(File hint) throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hint),
+				FileUtils.BUFFER_SIZE));
+		try {
+			while (true) {
+				long timestamp;
+				try {
+					timestamp = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int keyLength = in.readInt();
+				int length = in.readInt();
+				long offset = in.readLong();
+				byte[] name = new byte[keyLength];
+				in.readFully(name);
+				records.add(new Record(new String(name, UTF8), keyLength, timestamp, offset, length));
+			}
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Waits until the writes to a segment are on disk, if writes are flushed
+	 */
+	protected void commit(FileChannel channel) throws IOException {
+		if (sync == null) {
+			return;
+		}
+		try {
+			sync.commit(channel);
+		} catch (IOException e) {
+			//a compacted segment is closed after its live records are copied to the active
+			//one, and the copies are flushed before, so flush the active segment instead
+			if (channel.isOpen() || !compacted(channel)) {
+				throw e;
+			}
+			FileChannel current;
+			synchronized (appendLock) {
+				current = active.channel;
+			}
+			sync.commit(current);
+		}
+	}
+
+	/**
+	 * @return true if the segment of a channel was removed by a compaction
+	 */
+	private boolean compacted(FileChannel channel) {
+		lock.readLock().lock();
+		try {
+			for (Segment segment : segments.values()) {
+				if (segment.channel == channel) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, start + buffer.position());
+		}
+	}
+}
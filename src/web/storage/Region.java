@@ -0,0 +1,46 @@
+package web.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Location of the content of an object: a range of bytes of a file
+ *
+ */
+public class Region {
+
+	protected File file;
+
+	protected long offset;
+
+	protected long length;
+
+	public Region(File file, long offset, long length) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Opens the file of the region for reading
+	 *
+	 * @throws FileNotFoundException if the file no longer exists
+	 */
+	public FileChannel open() throws FileNotFoundException {
+		return new RandomAccessFile(file, "r").getChannel();
+	}
+}
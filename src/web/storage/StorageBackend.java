@@ -0,0 +1,71 @@
+package web.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import utils.ObjectInfo;
+
+/**
+ * Stores the content of the objects of a data server.
+ *
+ * The content is stored as given, the backend doesn't interpret it. Operations over
+ * an object that is not stored throw {@link java.io.FileNotFoundException}.
+ *
+ * Implementations must be thread safe. Modifications of the same object are serialized
+ * by the data server, but reads can be concurrent with them.
+ *
+ */
+public interface StorageBackend {
+
+	/**
+	 * @return the whole content of an object
+	 */
+	public byte[] read(String object) throws IOException;
+
+	/**
+	 * Reads a range of the content of an object
+	 *
+	 * @return a buffer with the bytes read, from its position to its limit. Has less than
+	 *         length bytes if the content ends before
+	 */
+	public ByteBuffer read(String object, long position, int length) throws IOException;
+
+	/**
+	 * Returns the location of the content of an object in a file, to read it as a stream
+	 * or map it in memory. The region may be moved by the backend once returned, so
+	 * readers must locate it again if its file no longer exists.
+	 */
+	public Region locate(String object) throws IOException;
+
+	public void write(String object, byte[] content) throws IOException;
+
+	/**
+	 * Writes the content of an object read from a stream. The stream is not closed
+	 */
+	public void write(String object, InputStream content) throws IOException;
+
+	public void delete(String object) throws IOException;
+
+	/**
+	 * @return the metadata of an object, or null if it is not stored
+	 */
+	public ObjectInfo stat(String object) throws IOException;
+
+	/**
+	 * @return the metadata of all the objects
+	 */
+	public List<ObjectInfo> list() throws IOException;
+
+	/**
+	 * Returns a page of the objects, ordered by name
+	 *
+	 * @param after name of the last object of the previous page, or null for the first page
+	 * @param limit maximum number of objects
+	 * @return the metadata of the objects following the given one
+	 */
+	public List<ObjectInfo> list(String after, int limit) throws IOException;
+
+	public void close() throws IOException;
+}